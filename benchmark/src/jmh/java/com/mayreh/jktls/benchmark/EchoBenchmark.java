@@ -0,0 +1,96 @@
+package com.mayreh.jktls.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mayreh.jktls.KTlsSocketChannel;
+import com.mayreh.jktls.testing.KTlsServer;
+import com.mayreh.jktls.testing.TlsClient;
+import com.mayreh.jktls.testing.VirtualThreadKTlsServer;
+
+/**
+ * Request/response latency of echo servers using kernel TLS, with event loops ({@link KTlsServer}) and
+ * with a thread per connection ({@link VirtualThreadKTlsServer}),
+ * compared to a server which does TLS in user space ({@link SslEngineServer}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EchoBenchmark {
+    @Param({"ktls", "ktls-vt", "jsse"})
+    private String server;
+
+    @Param({"TLSv1.2", "TLSv1.3"})
+    private String protocol;
+
+    @Param({"64", "4096"})
+    private int messageSize;
+
+    private AutoCloseable serverHandle;
+    private TlsClient client;
+    private String message;
+
+    @Setup
+    public void setup() {
+        int port;
+        if ("ktls".equals(server)) {
+            KTlsServer kTlsServer = new KTlsServer(0);
+            kTlsServer.setBufferHandler(EchoBenchmark::echo);
+            kTlsServer.start();
+            port = kTlsServer.getPort();
+            serverHandle = kTlsServer;
+        } else if ("ktls-vt".equals(server)) {
+            VirtualThreadKTlsServer kTlsServer = new VirtualThreadKTlsServer(0);
+            kTlsServer.setBufferHandler(EchoBenchmark::echo);
+            kTlsServer.start();
+            port = kTlsServer.getPort();
+            serverHandle = kTlsServer;
+        } else {
+            SslEngineServer sslEngineServer = new SslEngineServer();
+            sslEngineServer.start();
+            port = sslEngineServer.getPort();
+            serverHandle = sslEngineServer;
+        }
+        client = new TlsClient("localhost", port, protocol);
+
+        // TlsClient appends a line separator
+        char[] chars = new char[messageSize - 1];
+        Arrays.fill(chars, 'x');
+        message = new String(chars);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.close();
+        serverHandle.close();
+    }
+
+    @Benchmark
+    public String echo() {
+        return client.sendAndWaitReply(message);
+    }
+
+    private static void echo(KTlsSocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
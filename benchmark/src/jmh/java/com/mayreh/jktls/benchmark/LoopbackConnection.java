@@ -0,0 +1,92 @@
+package com.mayreh.jktls.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
+
+import com.mayreh.jktls.testing.SslContexts;
+
+import lombok.Getter;
+import lombok.experimental.Accessors;
+
+/**
+ * A TLS connection over the loopback interface.
+ * The server side is a blocking {@link SocketChannel} which is handshaken by {@link SSLEngine}
+ * so that it can be switched to kernel TLS, and the client side is JSSE's {@link SSLSocket}.
+ */
+@Accessors(fluent = true)
+public class LoopbackConnection implements AutoCloseable {
+    private static final SSLContext SERVER_CONTEXT = SslContexts.server();
+
+    @Getter
+    private final SslEngineChannel server;
+    @Getter
+    private final SSLSocket client;
+    private Thread drainer;
+
+    private LoopbackConnection(SslEngineChannel server, SSLSocket client) {
+        this.server = server;
+        this.client = client;
+    }
+
+    public static LoopbackConnection open(String protocol) throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(loopback, 0));
+            int port = ((InetSocketAddress) listener.getLocalAddress()).getPort();
+
+            SSLSocket client = (SSLSocket) SslContexts.client(protocol)
+                                                      .getSocketFactory()
+                                                      .createSocket(loopback, port);
+            CompletableFuture<Void> clientHandshake = CompletableFuture.runAsync(() -> {
+                try {
+                    client.startHandshake();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            SSLEngine engine = SERVER_CONTEXT.createSSLEngine();
+            engine.setUseClientMode(false);
+            SslEngineChannel server = SslEngineChannel.handshake(listener.accept(), engine);
+            clientHandshake.join();
+            return new LoopbackConnection(server, client);
+        }
+    }
+
+    /**
+     * Start a thread which reads and discards everything the server sends
+     */
+    public void startDraining() {
+        drainer = new Thread(() -> {
+            byte[] buf = new byte[65536];
+            try (InputStream in = client.getInputStream()) {
+                while (in.read(buf) >= 0) {
+                    // discard
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }, "loopback-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            server.channel().close();
+        } finally {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.mayreh.jktls.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.mayreh.jktls.KTlsSocketChannel;
+import com.mayreh.jktls.KTlsSocketOptions;
+import com.mayreh.jktls.TlsCryptoInfo;
+
+/**
+ * Cost of switching a handshaken connection to kernel TLS.
+ * Since TLS ULP can be installed only once per socket, offloading benchmarks use a fresh connection per invocation.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SetupBenchmark {
+    @State(Scope.Benchmark)
+    public static class HandshakenEngine {
+        @Param({"TLSv1.2", "TLSv1.3"})
+        private String protocol;
+
+        private LoopbackConnection connection;
+        private SSLEngine engine;
+
+        @Setup
+        public void setup() throws IOException {
+            connection = LoopbackConnection.open(protocol);
+            engine = connection.server().engine();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            connection.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class FreshConnection {
+        @Param({"TLSv1.2", "TLSv1.3"})
+        private String protocol;
+
+        private LoopbackConnection connection;
+        private KTlsSocketChannel channel;
+        private SSLEngine engine;
+
+        @Setup(Level.Invocation)
+        public void setup() throws IOException {
+            connection = LoopbackConnection.open(protocol);
+            channel = KTlsSocketChannel.wrap(connection.server().channel());
+            engine = connection.server().engine();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException {
+            connection.close();
+        }
+    }
+
+    @Benchmark
+    public void extractCryptoInfo(HandshakenEngine state, Blackhole blackhole) {
+        blackhole.consume(TlsCryptoInfo.from(state.engine));
+        blackhole.consume(TlsCryptoInfo.forRead(state.engine));
+    }
+
+    @Benchmark
+    public void setOptions(FreshConnection state) throws IOException {
+        state.channel.setOption(KTlsSocketOptions.TCP_ULP, "tls");
+        state.channel.setOption(KTlsSocketOptions.TLS_TX, TlsCryptoInfo.from(state.engine));
+        state.channel.setOption(KTlsSocketOptions.TLS_RX, TlsCryptoInfo.forRead(state.engine));
+    }
+
+    @Benchmark
+    public void enable(FreshConnection state) throws IOException {
+        state.channel.enable(TlsCryptoInfo.from(state.engine), TlsCryptoInfo.forRead(state.engine));
+    }
+}
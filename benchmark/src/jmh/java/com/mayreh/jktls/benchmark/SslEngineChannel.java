@@ -0,0 +1,136 @@
+package com.mayreh.jktls.benchmark;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+import lombok.Getter;
+import lombok.experimental.Accessors;
+
+/**
+ * Minimal TLS channel over a blocking {@link SocketChannel} which encrypts and decrypts data in user space
+ * by {@link SSLEngine}. This is the baseline to compare kernel TLS with.
+ */
+@Accessors(fluent = true)
+public class SslEngineChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    @Getter
+    private final SocketChannel channel;
+    @Getter
+    private final SSLEngine engine;
+    private final ByteBuffer netIn;
+    private final ByteBuffer netOut;
+    // Decrypted data which is not consumed yet. Always in write mode
+    private final ByteBuffer appIn;
+
+    private SslEngineChannel(SocketChannel channel, SSLEngine engine) {
+        this.channel = channel;
+        this.engine = engine;
+        netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+    }
+
+    /**
+     * Perform TLS handshake over the channel
+     */
+    public static SslEngineChannel handshake(SocketChannel channel, SSLEngine engine) throws IOException {
+        SslEngineChannel tlsChannel = new SslEngineChannel(channel, engine);
+        tlsChannel.doHandshake();
+        return tlsChannel;
+    }
+
+    private void doHandshake() throws IOException {
+        engine.beginHandshake();
+        HandshakeStatus status = engine.getHandshakeStatus();
+        while (status != HandshakeStatus.FINISHED && status != HandshakeStatus.NOT_HANDSHAKING) {
+            switch (status) {
+                case NEED_WRAP:
+                    status = wrap(EMPTY).getHandshakeStatus();
+                    break;
+                case NEED_UNWRAP:
+                    netIn.flip();
+                    SSLEngineResult result = engine.unwrap(netIn, appIn);
+                    netIn.compact();
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW
+                        && channel.read(netIn) < 0) {
+                        throw new EOFException("Channel closed during handshake");
+                    }
+                    status = engine.getHandshakeStatus();
+                    break;
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    status = engine.getHandshakeStatus();
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected handshake status: " + status);
+            }
+        }
+    }
+
+    /**
+     * Read decrypted data into the buffer.
+     * @return the number of bytes read, or -1 if the channel reached end-of-stream
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        while (appIn.position() == 0) {
+            netIn.flip();
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            netIn.compact();
+            switch (result.getStatus()) {
+                case OK:
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (channel.read(netIn) < 0) {
+                        return -1;
+                    }
+                    break;
+                case CLOSED:
+                    return -1;
+                default:
+                    throw new IllegalStateException("Unexpected status: " + result.getStatus());
+            }
+        }
+        appIn.flip();
+        int n = Math.min(appIn.remaining(), dst.remaining());
+        ByteBuffer src = appIn.duplicate();
+        src.limit(src.position() + n);
+        dst.put(src);
+        appIn.position(appIn.position() + n);
+        appIn.compact();
+        return n;
+    }
+
+    /**
+     * Encrypt and write all remaining data in the buffer.
+     */
+    public int write(ByteBuffer src) throws IOException {
+        int written = 0;
+        while (src.hasRemaining()) {
+            written += wrap(src).bytesConsumed();
+        }
+        return written;
+    }
+
+    private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+        netOut.clear();
+        SSLEngineResult result = engine.wrap(src, netOut);
+        if (result.getStatus() != SSLEngineResult.Status.OK) {
+            throw new IllegalStateException("Unexpected status: " + result.getStatus());
+        }
+        netOut.flip();
+        while (netOut.hasRemaining()) {
+            channel.write(netOut);
+        }
+        return result;
+    }
+}
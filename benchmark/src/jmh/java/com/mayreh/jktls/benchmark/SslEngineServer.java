@@ -0,0 +1,86 @@
+package com.mayreh.jktls.benchmark;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import com.mayreh.jktls.testing.SslContexts;
+
+import lombok.Getter;
+
+/**
+ * Echo server which encrypts and decrypts data in user space by {@link SSLEngine},
+ * to be compared with {@link com.mayreh.jktls.testing.KTlsServer}.
+ * Each connection is served by a dedicated thread with blocking IO.
+ */
+public class SslEngineServer extends Thread implements AutoCloseable {
+    private final SSLContext sslContext = SslContexts.server();
+    private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "ssl-engine-server-worker");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ServerSocketChannel serverSocketChannel;
+    @Getter
+    private final int port;
+
+    public SslEngineServer() {
+        try {
+            serverSocketChannel = ServerSocketChannel.open();
+            serverSocketChannel.bind(new InetSocketAddress("0.0.0.0", 0));
+            port = serverSocketChannel.socket().getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        setName("ssl-engine-server");
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (serverSocketChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverSocketChannel.accept();
+                workers.execute(() -> serve(channel));
+            } catch (IOException e) {
+                // closed
+                return;
+            }
+        }
+    }
+
+    private void serve(SocketChannel accepted) {
+        try (SocketChannel channel = accepted) {
+            SSLEngine engine = sslContext.createSSLEngine();
+            engine.setUseClientMode(false);
+            SslEngineChannel tlsChannel = SslEngineChannel.handshake(channel, engine);
+
+            ByteBuffer buffer = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+            while (tlsChannel.read(buffer) >= 0) {
+                buffer.flip();
+                tlsChannel.write(buffer);
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            // connection closed by the client
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            serverSocketChannel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        workers.shutdownNow();
+    }
+}
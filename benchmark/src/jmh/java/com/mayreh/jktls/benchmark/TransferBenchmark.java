@@ -0,0 +1,101 @@
+package com.mayreh.jktls.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mayreh.jktls.KTlsSocketChannel;
+import com.mayreh.jktls.TlsCryptoInfo;
+
+/**
+ * Throughput of sending a file.
+ * <ul>
+ *     <li>sendfile: {@link KTlsSocketChannel#transferFrom(FileChannel, long, long)}</li>
+ *     <li>jsse: read the file into a buffer, {@link javax.net.ssl.SSLEngine#wrap} then write</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TransferBenchmark {
+    // Same as the max TLS record size
+    private static final int CHUNK_SIZE = 16384;
+
+    @Param({"sendfile", "jsse"})
+    private String mode;
+
+    @Param({"TLSv1.2", "TLSv1.3"})
+    private String protocol;
+
+    @Param({"1048576", "16777216"})
+    private int fileSize;
+
+    private LoopbackConnection connection;
+    private KTlsSocketChannel channel;
+    private Path path;
+    private FileChannel file;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup() throws IOException {
+        connection = LoopbackConnection.open(protocol);
+        connection.startDraining();
+        if ("sendfile".equals(mode)) {
+            channel = KTlsSocketChannel.wrap(connection.server().channel());
+            channel.enable(TlsCryptoInfo.from(connection.server().engine()), null);
+        }
+
+        byte[] data = new byte[fileSize];
+        ThreadLocalRandom.current().nextBytes(data);
+        path = Files.createTempFile("jktls-benchmark", ".dat");
+        Files.write(path, data);
+        file = FileChannel.open(path, StandardOpenOption.READ);
+        buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        connection.close();
+        file.close();
+        Files.delete(path);
+    }
+
+    @Benchmark
+    public long transfer() throws IOException {
+        long transferred = 0;
+        if (channel != null) {
+            while (transferred < fileSize) {
+                transferred += channel.transferFrom(file, transferred, fileSize - transferred);
+            }
+        } else {
+            while (transferred < fileSize) {
+                buffer.clear();
+                transferred += file.read(buffer, transferred);
+                buffer.flip();
+                connection.server().write(buffer);
+            }
+        }
+        return transferred;
+    }
+}
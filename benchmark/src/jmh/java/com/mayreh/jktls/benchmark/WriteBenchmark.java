@@ -0,0 +1,86 @@
+package com.mayreh.jktls.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mayreh.jktls.KTlsSocketChannel;
+import com.mayreh.jktls.TlsCryptoInfo;
+
+/**
+ * Bulk throughput of writing a buffer of the given size.
+ * Multiply ops/s by {@link #size} to get bytes/s.
+ * <ul>
+ *     <li>ktls: {@link KTlsSocketChannel#write(ByteBuffer)} delegating to the JDK's SocketChannel</li>
+ *     <li>ktls-native: same as above with {@link KTlsSocketChannel#setNativeWriteEnabled(boolean)}</li>
+ *     <li>jsse: {@link javax.net.ssl.SSLEngine#wrap} then write</li>
+ * </ul>
+ * Run with {@code -prof gc} to compare allocations per write between ktls and ktls-native.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class WriteBenchmark {
+    @Param({"ktls", "ktls-native", "jsse"})
+    private String mode;
+
+    @Param({"TLSv1.2", "TLSv1.3"})
+    private String protocol;
+
+    @Param({"1024", "16384", "262144"})
+    private int size;
+
+    private LoopbackConnection connection;
+    private KTlsSocketChannel channel;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup() throws IOException {
+        connection = LoopbackConnection.open(protocol);
+        connection.startDraining();
+        if (!"jsse".equals(mode)) {
+            channel = KTlsSocketChannel.wrap(connection.server().channel());
+            channel.enable(TlsCryptoInfo.from(connection.server().engine()), null);
+            channel.setNativeWriteEnabled("ktls-native".equals(mode));
+        }
+
+        byte[] data = new byte[size];
+        ThreadLocalRandom.current().nextBytes(data);
+        buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(data);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        connection.close();
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        buffer.clear();
+        if (channel != null) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } else {
+            connection.server().write(buffer);
+        }
+    }
+}
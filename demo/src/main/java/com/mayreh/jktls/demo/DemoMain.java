@@ -30,8 +30,7 @@ public class DemoMain {
             String message = new String(m, StandardCharsets.UTF_8).trim();
             log.info("Received: {}", message);
             if ("lorem-ipsum".equals(message)) {
-                fileChannel.position(0);
-                channel.transferFrom(fileChannel, 0, fileChannel.size());
+                tlsServer.transfer(channel, fileChannel, 0, fileChannel.size());
             } else {
                 ByteBuffer buf = ByteBuffer.allocate(m.length);
                 buf.put(m);
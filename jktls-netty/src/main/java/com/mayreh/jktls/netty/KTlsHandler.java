@@ -0,0 +1,296 @@
+package com.mayreh.jktls.netty;
+
+import static com.mayreh.jktls.reflection.Utils.methodHandle;
+import static com.mayreh.jktls.reflection.Utils.propagate;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+import com.mayreh.jktls.KTlsCapabilities;
+import com.mayreh.jktls.KTlsSocketChannel;
+import com.mayreh.jktls.sun.security.ssl.SSLEngineImpl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.PendingWriteQueue;
+import io.netty.channel.nio.AbstractNioChannel;
+import io.netty.handler.ssl.SslCloseCompletionEvent;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+
+/**
+ * Switches a Netty channel to kernel TLS once {@link SslHandler} completes the handshake,
+ * then removes {@link SslHandler} from the pipeline.
+ * <p>
+ * Afterwards, the transport reads and writes plaintext on the socket directly, and {@link io.netty.channel.FileRegion}s
+ * are sent by sendfile(2) without being copied into the JVM.
+ * Must be added right after {@link SslHandler}:
+ * <pre>{@code
+ * pipeline.addLast(sslContext.newHandler(ch.alloc()));
+ * pipeline.addLast(new KTlsHandler());
+ * }</pre>
+ * Kernel TLS is enabled only on the NIO transport with the JDK's {@link SSLEngine}, and the cipher suite
+ * supported by the kernel (see {@link KTlsCapabilities}).
+ * Otherwise {@link SslHandler} stays in the pipeline.
+ * Either way, {@link KTlsUpgradeEvent} is fired once decided.
+ * <p>
+ * If {@link SslHandler} is left with a partial record, kernel TLS is enabled once the following reads complete it,
+ * since the kernel can take over only at a record boundary. Writes in the meantime are held until then.
+ * <p>
+ * Since the transport reads the socket by plain read(2), a record other than application data
+ * (e.g. close_notify alert) fails the read with EIO, which is propagated as an {@link IOException}.
+ * Also, closing the channel doesn't send close_notify.
+ * For the same reason, TLS 1.3 client connections are not switched, since servers send NewSessionTicket
+ * right after the handshake.
+ */
+public class KTlsHandler extends ChannelDuplexHandler {
+    private static final MethodHandle javaChannel = methodHandle(AbstractNioChannel.class, "javaChannel");
+    private static final int TLS_RECORD_HEADER_SIZE = 5;
+
+    // Set while removing SslHandler, which passes the bytes left in its cumulation to the next handler
+    private boolean removingSslHandler;
+    // Encrypted bytes which SslHandler has not unwrapped yet, i.e. a partial record,
+    // followed by the bytes read until the record completes
+    private ByteBuf leftover;
+    // Set while waiting for the partial record after SslHandler is removed
+    private SSLEngine engine;
+    private SocketChannel channel;
+    // Writes while waiting for the partial record, which must not reach the socket before TLS_TX is enabled
+    private PendingWriteQueue pendingWrites;
+    private boolean flushPending;
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (removingSslHandler && evt instanceof SslCloseCompletionEvent) {
+            // SslHandler reports its removal as a failed closure, which is not the case here
+            return;
+        }
+        if (evt instanceof SslHandshakeCompletionEvent && ((SslHandshakeCompletionEvent) evt).isSuccess()) {
+            // SslHandler may be in the middle of decoding, so switch once the control returns to the event loop
+            ctx.executor().execute(() -> tryUpgrade(ctx));
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if ((removingSslHandler || engine != null) && msg instanceof ByteBuf) {
+            ByteBuf buf = (ByteBuf) msg;
+            try {
+                if (leftover == null) {
+                    leftover = ctx.alloc().heapBuffer(buf.readableBytes());
+                }
+                leftover.writeBytes(buf);
+            } finally {
+                buf.release();
+            }
+            if (engine != null && endsAtRecordBoundary(leftover)) {
+                completeUpgrade(ctx);
+            }
+            return;
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (removingSslHandler) {
+            return;
+        }
+        if (engine != null) {
+            // Keep reading even if auto read is disabled, since nothing is passed to the application until upgraded
+            ctx.read();
+            return;
+        }
+        super.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (pendingWrites != null) {
+            pendingWrites.add(msg, promise);
+            return;
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        if (pendingWrites != null) {
+            flushPending = true;
+            return;
+        }
+        super.flush(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        if (leftover != null) {
+            leftover.release();
+            leftover = null;
+        }
+        if (pendingWrites != null) {
+            pendingWrites.removeAndFailAll(new ClosedChannelException());
+            pendingWrites = null;
+        }
+    }
+
+    private void tryUpgrade(ChannelHandlerContext ctx) {
+        if (ctx.isRemoved() || !ctx.channel().isActive()) {
+            return;
+        }
+        SslHandler sslHandler = ctx.pipeline().get(SslHandler.class);
+        SocketChannel channel = javaChannel(ctx.channel());
+        if (sslHandler == null || channel == null || !isSupported(sslHandler.engine())) {
+            ctx.fireUserEventTriggered(KTlsUpgradeEvent.FALLBACK);
+            ctx.pipeline().remove(this);
+            return;
+        }
+
+        // Let SslHandler encrypt pending writes
+        ctx.flush();
+        ChannelOutboundBuffer outboundBuffer = ctx.channel().unsafe().outboundBuffer();
+        if (outboundBuffer != null && !outboundBuffer.isEmpty()) {
+            // Records encrypted by SslHandler must reach the socket before the kernel starts encrypting.
+            // Written from SslHandler's context so that the marker isn't encrypted
+            ctx.pipeline().context(sslHandler)
+               .writeAndFlush(Unpooled.EMPTY_BUFFER)
+               .addListener(future -> {
+                   if (future.isSuccess()) {
+                       tryUpgrade(ctx);
+                   }
+               });
+            return;
+        }
+        upgrade(ctx, sslHandler, channel);
+    }
+
+    private void upgrade(ChannelHandlerContext ctx, SslHandler sslHandler, SocketChannel channel) {
+        engine = sslHandler.engine();
+        this.channel = channel;
+        removingSslHandler = true;
+        try {
+            ctx.pipeline().remove(sslHandler);
+        } finally {
+            removingSslHandler = false;
+        }
+        if (leftover != null && !endsAtRecordBoundary(leftover)) {
+            // Rather than waiting for the rest of the record on the event loop, complete on the following reads
+            pendingWrites = new PendingWriteQueue(ctx);
+            ctx.read();
+            return;
+        }
+        completeUpgrade(ctx);
+    }
+
+    private void completeUpgrade(ChannelHandlerContext ctx) {
+        SSLEngine engine = this.engine;
+        this.engine = null;
+        ByteBuffer pendingNetData = ByteBuffer.allocate(leftover == null ? 0 : leftover.readableBytes());
+        if (leftover != null) {
+            leftover.readBytes(pendingNetData);
+            leftover.release();
+            leftover = null;
+        }
+        pendingNetData.flip();
+
+        try {
+            // Pending data ends at a record boundary, so the socket is not read here
+            KTlsSocketChannel kTlsChannel = KTlsSocketChannel.upgrade(channel, engine, pendingNetData);
+            writePendingWrites(ctx);
+            firePendingPlaintext(ctx, kTlsChannel, engine);
+        } catch (IOException | RuntimeException e) {
+            // SslHandler is already removed, so the connection can't continue
+            ctx.fireExceptionCaught(e);
+            ctx.close();
+            return;
+        }
+        ctx.fireUserEventTriggered(KTlsUpgradeEvent.SUCCESS);
+        ctx.pipeline().remove(this);
+    }
+
+    private void writePendingWrites(ChannelHandlerContext ctx) {
+        PendingWriteQueue writes = pendingWrites;
+        if (writes == null) {
+            return;
+        }
+        pendingWrites = null;
+        writes.removeAndWriteAll();
+        if (flushPending) {
+            flushPending = false;
+            ctx.flush();
+        }
+    }
+
+    /**
+     * Pass the data which was decrypted by the engine on upgrade, since the transport reads the socket
+     * directly rather than through {@link KTlsSocketChannel}
+     */
+    private static void firePendingPlaintext(ChannelHandlerContext ctx,
+                                             KTlsSocketChannel kTlsChannel,
+                                             SSLEngine engine) throws IOException {
+        if (!kTlsChannel.hasPendingPlaintext()) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        while (kTlsChannel.hasPendingPlaintext()) {
+            buffer.clear();
+            kTlsChannel.read(buffer);
+            buffer.flip();
+            ctx.fireChannelRead(ctx.alloc().buffer(buffer.remaining()).writeBytes(buffer));
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    /**
+     * Whether the buffer consists of complete TLS records
+     */
+    private static boolean endsAtRecordBoundary(ByteBuf buf) {
+        int index = buf.readerIndex();
+        while (index < buf.writerIndex()) {
+            if (buf.writerIndex() - index < TLS_RECORD_HEADER_SIZE) {
+                return false;
+            }
+            index += TLS_RECORD_HEADER_SIZE + buf.getUnsignedShort(index + 3);
+        }
+        return index == buf.writerIndex();
+    }
+
+    private static boolean isSupported(SSLEngine engine) {
+        if (!SSLEngineImpl.isInstance(engine)) {
+            return false;
+        }
+        SSLSession session = engine.getSession();
+        if (engine.getUseClientMode() && "TLSv1.3".equals(session.getProtocol())) {
+            return false;
+        }
+        return KTlsCapabilities.probe().isSupported(session.getProtocol(), session.getCipherSuite());
+    }
+
+    /**
+     * Returns the underlying {@link SocketChannel}, or null if the channel is not of the NIO transport
+     */
+    private static SocketChannel javaChannel(Channel channel) {
+        if (!(channel instanceof AbstractNioChannel)) {
+            return null;
+        }
+        Object javaCh;
+        try {
+            javaCh = (Object) javaChannel.invokeExact((Object) channel);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+        return javaCh instanceof SocketChannel ? (SocketChannel) javaCh : null;
+    }
+}
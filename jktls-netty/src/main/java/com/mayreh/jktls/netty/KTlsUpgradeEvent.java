@@ -0,0 +1,16 @@
+package com.mayreh.jktls.netty;
+
+/**
+ * User event fired by {@link KTlsHandler} once it decided whether the connection uses kernel TLS.
+ */
+public enum KTlsUpgradeEvent {
+    /**
+     * {@link io.netty.handler.ssl.SslHandler} was removed and TLS is offloaded to the kernel
+     */
+    SUCCESS,
+    /**
+     * Kernel TLS is not available for the connection (e.g. unsupported transport, engine or cipher suite),
+     * so {@link io.netty.handler.ssl.SslHandler} keeps handling TLS
+     */
+    FALLBACK,
+}
@@ -0,0 +1,237 @@
+package com.mayreh.jktls.netty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.EOFException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mayreh.jktls.KTlsCapabilities;
+import com.mayreh.jktls.testing.SslContexts;
+import com.mayreh.jktls.testing.TlsClient;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.ssl.ClientAuth;
+import io.netty.handler.ssl.IdentityCipherSuiteFilter;
+import io.netty.handler.ssl.JdkSslContext;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+
+public class KTlsHandlerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private EventLoopGroup group;
+    private Channel serverChannel;
+    private int port;
+    private Path file;
+    private final BlockingQueue<Object> events = new LinkedBlockingQueue<>();
+    // Overrides the cipher suites of the server if set
+    private volatile String[] cipherSuites;
+
+    @Before
+    public void setUp() throws Exception {
+        file = folder.newFile().toPath();
+        Files.write(file, "file-content\n".getBytes(StandardCharsets.UTF_8));
+
+        SslContext sslContext = new JdkSslContext(SslContexts.server(), false, null,
+                                                  IdentityCipherSuiteFilter.INSTANCE, null,
+                                                  ClientAuth.NONE, null, false);
+        group = new NioEventLoopGroup(1);
+        serverChannel = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        SslHandler sslHandler = sslContext.newHandler(ch.alloc());
+                        if (cipherSuites != null) {
+                            sslHandler.engine().setEnabledCipherSuites(cipherSuites);
+                        }
+                        ch.pipeline().addLast(sslHandler,
+                                              new KTlsHandler(),
+                                              new ServerHandler());
+                    }
+                })
+                .bind("localhost", 0)
+                .sync()
+                .channel();
+        port = ((InetSocketAddress) serverChannel.localAddress()).getPort();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (serverChannel != null) {
+            serverChannel.close().sync();
+        }
+        if (group != null) {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        }
+    }
+
+    @Test(timeout = 15000L)
+    public void testEcho() throws Exception {
+        assumeTrue(KTlsCapabilities.probe().isSupported("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256"));
+        try (TlsClient client = new TlsClient("localhost", port)) {
+            assertEquals("hello", client.sendAndWaitReply("hello"));
+            assertEquals(KTlsUpgradeEvent.SUCCESS, events.poll(10, TimeUnit.SECONDS));
+            assertEquals("world", client.sendAndWaitReply("world"));
+        }
+    }
+
+    @Test(timeout = 15000L)
+    public void testFileRegion() throws Exception {
+        assumeTrue(KTlsCapabilities.probe().isSupported("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256"));
+        try (TlsClient client = new TlsClient("localhost", port)) {
+            assertEquals("hello", client.sendAndWaitReply("hello"));
+            assertEquals(KTlsUpgradeEvent.SUCCESS, events.poll(10, TimeUnit.SECONDS));
+            assertEquals("file-content", client.sendAndWaitReply("file"));
+        }
+    }
+
+    @Test(timeout = 15000L)
+    public void testFallback() throws Exception {
+        // CBC suites are never offloaded
+        cipherSuites = new String[] { "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256" };
+        try (TlsClient client = new TlsClient("localhost", port)) {
+            assertEquals("hello", client.sendAndWaitReply("hello"));
+            assertEquals(KTlsUpgradeEvent.FALLBACK, events.poll(10, TimeUnit.SECONDS));
+            assertEquals("world", client.sendAndWaitReply("world"));
+        }
+    }
+
+    @Test(timeout = 15000L)
+    public void testPartialRecordAfterHandshake() throws Exception {
+        assumeTrue(KTlsCapabilities.probe().isSupported("TLSv1.3", "TLS_AES_128_GCM_SHA256"));
+
+        SSLEngine engine = SslContexts.client("TLSv1.3").createSSLEngine("localhost", port);
+        engine.setUseClientMode(true);
+        int packetSize = engine.getSession().getPacketBufferSize();
+        ByteBuffer netOut = ByteBuffer.allocate(packetSize * 4);
+        ByteBuffer netIn = ByteBuffer.allocate(packetSize * 4);
+        ByteBuffer appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        try (java.nio.channels.SocketChannel channel =
+                     java.nio.channels.SocketChannel.open(new InetSocketAddress("localhost", port))) {
+            engine.beginHandshake();
+            HandshakeStatus status = engine.getHandshakeStatus();
+            while (status != HandshakeStatus.FINISHED) {
+                switch (status) {
+                    case NEED_WRAP:
+                        status = engine.wrap(ByteBuffer.allocate(0), netOut).getHandshakeStatus();
+                        break;
+                    case NEED_UNWRAP:
+                        flush(channel, netOut, netOut.position());
+                        status = unwrap(channel, engine, netIn, appIn).getHandshakeStatus();
+                        break;
+                    case NEED_TASK:
+                        engine.getDelegatedTask().run();
+                        status = engine.getHandshakeStatus();
+                        break;
+                    default:
+                        throw new IllegalStateException("Unexpected status: " + status);
+                }
+            }
+
+            // Send the record along with the client's Finished except its last bytes,
+            // so that SslHandler is left with a partial record when the handshake completes
+            engine.wrap(ByteBuffer.wrap("hello\n".getBytes(StandardCharsets.UTF_8)), netOut);
+            flush(channel, netOut, netOut.position() - 3);
+            Thread.sleep(100L);
+            flush(channel, netOut, netOut.position());
+
+            assertEquals(KTlsUpgradeEvent.SUCCESS, events.poll(10, TimeUnit.SECONDS));
+            while (appIn.position() < "hello\n".length()) {
+                SSLEngineResult result = unwrap(channel, engine, netIn, appIn);
+                if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                    // e.g. NewSessionTicket
+                    engine.getDelegatedTask().run();
+                }
+            }
+            appIn.flip();
+            assertEquals("hello\n", StandardCharsets.UTF_8.decode(appIn).toString());
+        }
+    }
+
+    /**
+     * Write the bytes of {@code netOut} (in write mode) up to {@code limit}, keeping the rest
+     */
+    private static void flush(java.nio.channels.SocketChannel channel, ByteBuffer netOut, int limit)
+            throws Exception {
+        netOut.flip();
+        int end = netOut.limit();
+        netOut.limit(limit);
+        while (netOut.hasRemaining()) {
+            channel.write(netOut);
+        }
+        netOut.limit(end);
+        netOut.compact();
+    }
+
+    /**
+     * Unwrap a record from {@code netIn} (in write mode), reading from the channel if no complete record is there
+     */
+    private static SSLEngineResult unwrap(java.nio.channels.SocketChannel channel,
+                                          SSLEngine engine,
+                                          ByteBuffer netIn,
+                                          ByteBuffer appIn) throws Exception {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            netIn.compact();
+            if (result.getStatus() != SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                return result;
+            }
+            if (channel.read(netIn) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private class ServerHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof KTlsUpgradeEvent) {
+                events.add(evt);
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf buf = (ByteBuf) msg;
+            if ("file\n".equals(buf.toString(StandardCharsets.UTF_8))) {
+                buf.release();
+                ctx.writeAndFlush(new DefaultFileRegion(file.toFile(), 0, file.toFile().length()));
+            } else {
+                ctx.writeAndFlush(buf);
+            }
+        }
+    }
+}
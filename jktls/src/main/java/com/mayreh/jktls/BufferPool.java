@@ -0,0 +1,99 @@
+package com.mayreh.jktls;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct {@link ByteBuffer}s bucketed by power-of-two size classes.
+ * <p>
+ * Buffers which are necessary only for a short period (e.g. during TLS handshake, since the kernel takes over
+ * record processing afterwards) can be borrowed from the pool and returned once they are no longer necessary,
+ * so that the memory is shared among connections rather than being allocated per connection.
+ * Requests larger than the largest size class are served by fresh buffers which are not retained on release.
+ * <p>
+ * Only buffers obtained by {@link #acquire(int)} can be released, at most once.
+ * This class is thread-safe.
+ */
+public class BufferPool {
+    // 4KiB
+    private static final int MIN_SIZE_SHIFT = 12;
+    // 128KiB
+    private static final int MAX_SIZE_SHIFT = 17;
+    private static final int DEFAULT_MAX_RETAINED_PER_CLASS = 64;
+
+    /**
+     * The pool which is shared in the JVM, retaining at most 64 buffers per size class
+     */
+    public static final BufferPool SHARED = new BufferPool(DEFAULT_MAX_RETAINED_PER_CLASS);
+
+    private final int maxRetainedPerClass;
+    private final SizeClass[] sizeClasses = new SizeClass[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+
+    /**
+     * @param maxRetainedPerClass max number of idle buffers retained per size class.
+     *                            Released buffers beyond the limit are left to GC.
+     */
+    public BufferPool(int maxRetainedPerClass) {
+        if (maxRetainedPerClass < 0) {
+            throw new IllegalArgumentException("Negative maxRetainedPerClass: " + maxRetainedPerClass);
+        }
+        this.maxRetainedPerClass = maxRetainedPerClass;
+        for (int i = 0; i < sizeClasses.length; i++) {
+            sizeClasses[i] = new SizeClass();
+        }
+    }
+
+    /**
+     * Borrow a cleared direct buffer whose capacity is at least the given size
+     */
+    public ByteBuffer acquire(int size) {
+        int index = sizeClassIndex(size);
+        if (index < 0) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        SizeClass sizeClass = sizeClasses[index];
+        ByteBuffer buffer = sizeClass.buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(1 << (index + MIN_SIZE_SHIFT));
+        }
+        sizeClass.retained.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Return the buffer to the pool. The buffer must not be used after this call.
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        int index = sizeClassIndex(capacity);
+        if (index < 0) {
+            return;
+        }
+        SizeClass sizeClass = sizeClasses[index];
+        if (sizeClass.retained.incrementAndGet() > maxRetainedPerClass) {
+            sizeClass.retained.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        sizeClass.buffers.offer(buffer);
+    }
+
+    /**
+     * Returns the index of the smallest size class which can hold the size, or -1 if no such class
+     */
+    private static int sizeClassIndex(int size) {
+        int shift = Math.max(MIN_SIZE_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+        return shift > MAX_SIZE_SHIFT ? -1 : shift - MIN_SIZE_SHIFT;
+    }
+
+    private static class SizeClass {
+        final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        // Tracked separately since ConcurrentLinkedQueue#size is O(n)
+        final AtomicInteger retained = new AtomicInteger();
+    }
+}
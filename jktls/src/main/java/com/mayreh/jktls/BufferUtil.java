@@ -0,0 +1,28 @@
+package com.mayreh.jktls;
+
+import static com.mayreh.jktls.reflection.Utils.getterHandle;
+import static com.mayreh.jktls.reflection.Utils.propagate;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+final class BufferUtil {
+    private static final MethodHandle address = getterHandle(Buffer.class, "address");
+
+    private BufferUtil() {}
+
+    /**
+     * Returns the base address of the direct buffer's memory
+     */
+    static long address(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("Not a direct buffer");
+        }
+        try {
+            return (long) address.invokeExact((Object) buffer);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.mayreh.jktls;
+
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Cipher suites supported by jktls, named after JSSE's standard names.
+ * The native library only knows {@link CipherType}s, since crypto infos are laid out on Java side.
+ */
+@RequiredArgsConstructor
+enum CipherSuite {
+    TLS_RSA_WITH_AES_128_GCM_SHA256(TlsVersion.TLS12, CipherType.AES_GCM_128),
+    TLS_RSA_WITH_AES_256_GCM_SHA384(TlsVersion.TLS12, CipherType.AES_GCM_256),
+    TLS_DHE_RSA_WITH_AES_128_GCM_SHA256(TlsVersion.TLS12, CipherType.AES_GCM_128),
+    TLS_DHE_RSA_WITH_AES_256_GCM_SHA384(TlsVersion.TLS12, CipherType.AES_GCM_256),
+    TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256(TlsVersion.TLS12, CipherType.AES_GCM_128),
+    TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384(TlsVersion.TLS12, CipherType.AES_GCM_256),
+    TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256(TlsVersion.TLS12, CipherType.AES_GCM_128),
+    TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384(TlsVersion.TLS12, CipherType.AES_GCM_256),
+    TLS_DHE_RSA_WITH_CHACHA20_POLY1305_SHA256(TlsVersion.TLS12, CipherType.CHACHA20_POLY1305),
+    TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256(TlsVersion.TLS12, CipherType.CHACHA20_POLY1305),
+    TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256(TlsVersion.TLS12, CipherType.CHACHA20_POLY1305),
+    TLS_AES_128_GCM_SHA256(TlsVersion.TLS13, CipherType.AES_GCM_128),
+    TLS_AES_256_GCM_SHA384(TlsVersion.TLS13, CipherType.AES_GCM_256),
+    TLS_CHACHA20_POLY1305_SHA256(TlsVersion.TLS13, CipherType.CHACHA20_POLY1305),
+    ;
+
+    final TlsVersion version;
+    final CipherType cipherType;
+
+    /**
+     * Find the cipher suite which matches to the protocol and the suite name of a {@link javax.net.ssl.SSLSession}
+     * @throws UnsupportedOperationException if the pair is not supported
+     */
+    static CipherSuite of(String protocol, String cipherSuite) {
+        CipherSuite suite = find(protocol, cipherSuite);
+        if (suite == null) {
+            throw new UnsupportedOperationException(String.format(
+                    "Unsupported: protocol=%s, cipherSuite=%s", protocol, cipherSuite));
+        }
+        return suite;
+    }
+
+    static boolean isSupported(String protocol, String cipherSuite) {
+        return find(protocol, cipherSuite) != null;
+    }
+
+    /**
+     * @return the matching suite, or null if not found
+     */
+    private static CipherSuite find(String protocol, String cipherSuite) {
+        for (CipherSuite suite : values()) {
+            if (suite.name().equals(cipherSuite) && suite.version.protocol.equals(protocol)) {
+                return suite;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * HMAC algorithm of the suite's hash, which is used by HKDF in TLS 1.3 key schedule
+     */
+    String hmacAlgorithm() {
+        return name().endsWith("SHA384") ? "HmacSHA384" : "HmacSHA256";
+    }
+
+    @RequiredArgsConstructor
+    enum TlsVersion {
+        TLS12("TLSv1.2", (short) 0x0303),
+        TLS13("TLSv1.3", (short) 0x0304),
+        ;
+
+        final String protocol;
+        final short value;
+    }
+}
@@ -0,0 +1,31 @@
+package com.mayreh.jktls;
+
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Kernel's cipher types and the sizes of the fields of corresponding tls12_crypto_info_* struct.
+ * Must be kept in sync with `CipherType` in native/src/lib.rs.
+ */
+@RequiredArgsConstructor
+enum CipherType {
+    AES_GCM_128(51, 8, 16, 4, 8),
+    AES_GCM_256(52, 8, 32, 4, 8),
+    CHACHA20_POLY1305(54, 12, 32, 0, 8),
+    ;
+
+    // Size of struct tls_crypto_info, which consists of u16 version and u16 cipher_type
+    static final int HEADER_SIZE = 4;
+
+    /**
+     * TLS_CIPHER_* constant, which is also used as the cipher id passed to the native library
+     */
+    final int id;
+    final int ivSize;
+    final int keySize;
+    final int saltSize;
+    final int recSeqSize;
+
+    int infoSize() {
+        return HEADER_SIZE + ivSize + keySize + saltSize + recSeqSize;
+    }
+}
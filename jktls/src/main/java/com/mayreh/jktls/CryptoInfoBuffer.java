@@ -0,0 +1,180 @@
+package com.mayreh.jktls;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+import com.mayreh.jktls.sun.security.ssl.SSLEngineImpl;
+
+/**
+ * Off-heap tls12_crypto_info_* structs which are passed to the native library by address,
+ * so that the native side hands them to setsockopt(2) as is.
+ * <p>
+ * Buffers are pooled and shared among threads rather than allocated per thread, since threads may be
+ * as many as connections (e.g. virtual threads). Each buffer is wiped on {@link #close()} before returned to the pool.
+ * Crypto info can be written straight from the engine's cipher state, in which case enabling kernel TLS
+ * doesn't leave any key material on heap.
+ * Structs are packed back to back in the order of puts.
+ * <pre>{@code
+ * try (CryptoInfoBuffer buffer = CryptoInfoBuffer.acquire()) {
+ *     CipherType type = buffer.putWriteKeys(engine);
+ *     setCryptoInfo(fd, TLS_TX, buffer.address(), type.id);
+ * }
+ * }</pre>
+ */
+final class CryptoInfoBuffer implements AutoCloseable {
+    // Large enough to hold tls12_crypto_info_* structs of both directions of any cipher type
+    static final int CAPACITY = 128;
+    // Buffers are held only during setsockopt(2), so a few are enough even with many threads
+    private static final int MAX_RETAINED = 16;
+    private static final Queue<CryptoInfoBuffer> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger RETAINED = new AtomicInteger();
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(CAPACITY).order(ByteOrder.nativeOrder());
+    private final long address = BufferUtil.address(buffer);
+    private boolean acquired;
+
+    private CryptoInfoBuffer() {}
+
+    /**
+     * Borrows an empty buffer from the pool, which must be closed once the structs are passed to the kernel.
+     */
+    static CryptoInfoBuffer acquire() {
+        CryptoInfoBuffer buffer = POOL.poll();
+        if (buffer == null) {
+            buffer = new CryptoInfoBuffer();
+        } else {
+            RETAINED.decrementAndGet();
+        }
+        buffer.acquired = true;
+        buffer.buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Base address of the structs
+     */
+    long address() {
+        return address;
+    }
+
+    /**
+     * Returns a read-only view of the structs which were put so far
+     */
+    ByteBuffer contents() {
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.flip();
+        return view;
+    }
+
+    /**
+     * Put the crypto info as tls12_crypto_info_* struct
+     * @return the cipher type of the info, which determines the size of the struct
+     * @throws UnsupportedOperationException if the protocol or the cipher suite is not supported
+     */
+    CipherType put(TlsCryptoInfo info) {
+        CipherSuite suite = info.suite();
+        info.writeTo(buffer, suite);
+        return suite.cipherType;
+    }
+
+    /**
+     * Put the crypto info for data transmission of the engine, i.e. same as {@link TlsCryptoInfo#from}
+     * @return the cipher type of the info, which determines the size of the struct
+     * @throws UnsupportedOperationException if the engine, the protocol or the cipher suite is not supported
+     */
+    CipherType putWriteKeys(SSLEngine engine) {
+        CipherSuite suite = putHeader(engine);
+        int start = buffer.position();
+        if (!new SSLEngineImpl(engine).writeCipher().writeContext(buffer)) {
+            throw unsupported(engine.getSession());
+        }
+        return checkWritten(suite, start);
+    }
+
+    /**
+     * Put the crypto info for data reception of the engine, i.e. same as {@link TlsCryptoInfo#forRead}
+     * @return the cipher type of the info, which determines the size of the struct
+     * @throws UnsupportedOperationException if the engine, the protocol or the cipher suite is not supported
+     */
+    CipherType putReadKeys(SSLEngine engine) {
+        CipherSuite suite = putHeader(engine);
+        int start = buffer.position();
+        if (!new SSLEngineImpl(engine).readCipher().writeContext(buffer)) {
+            throw unsupported(engine.getSession());
+        }
+        return checkWritten(suite, start);
+    }
+
+    /**
+     * Put the key material derived by TLS 1.3 key schedule following the header.
+     * Sequence number always starts from zero.
+     * @return the cipher type of the info, which determines the size of the struct
+     */
+    CipherType put(CipherSuite suite, byte[] iv, byte[] key, byte[] salt) {
+        CipherType type = suite.cipherType;
+        if (iv.length != type.ivSize || key.length != type.keySize || salt.length != type.saltSize) {
+            throw new IllegalArgumentException("Invalid key material for " + suite);
+        }
+        buffer.putShort(suite.version.value)
+              .putShort((short) type.id)
+              .put(iv)
+              .put(key)
+              .put(salt);
+        for (int i = 0; i < type.recSeqSize; i++) {
+            buffer.put((byte) 0);
+        }
+        return type;
+    }
+
+    /**
+     * Wipe the structs and return the buffer to the pool. The buffer must not be used after this call.
+     */
+    @Override
+    public void close() {
+        if (!acquired) {
+            return;
+        }
+        for (int i = 0; i < CAPACITY; i += Long.BYTES) {
+            buffer.putLong(i, 0L);
+        }
+        acquired = false;
+        if (RETAINED.incrementAndGet() > MAX_RETAINED) {
+            RETAINED.decrementAndGet();
+            return;
+        }
+        POOL.offer(this);
+    }
+
+    private CipherSuite putHeader(SSLEngine engine) {
+        if (!SSLEngineImpl.isInstance(engine)) {
+            throw new UnsupportedOperationException("Unsupported SSLEngine implementation");
+        }
+        SSLSession session = engine.getSession();
+        CipherSuite suite = CipherSuite.of(session.getProtocol(), session.getCipherSuite());
+        buffer.putShort(suite.version.value)
+              .putShort((short) suite.cipherType.id);
+        return suite;
+    }
+
+    private CipherType checkWritten(CipherSuite suite, int start) {
+        CipherType type = suite.cipherType;
+        if (buffer.position() - start != type.infoSize() - CipherType.HEADER_SIZE) {
+            // Shouldn't happen unless JSSE changes the cipher's internal, but never pass a malformed struct
+            throw new UnsupportedOperationException("Unexpected crypto info layout for " + suite);
+        }
+        return type;
+    }
+
+    private static UnsupportedOperationException unsupported(SSLSession session) {
+        return new UnsupportedOperationException(
+                String.format("Unsupported protocol or cipher suite: protocol=%s, suite=%s",
+                              session.getProtocol(),
+                              session.getCipherSuite()));
+    }
+}
@@ -1,13 +1,13 @@
 package com.mayreh.jktls;
 
-import static com.mayreh.jktls.reflection.Utils.doReflection;
-import static com.mayreh.jktls.reflection.Utils.getField;
+import static com.mayreh.jktls.reflection.Utils.getterHandle;
+import static com.mayreh.jktls.reflection.Utils.propagate;
 
 import java.io.FileDescriptor;
-import java.lang.reflect.Field;
+import java.lang.invoke.MethodHandle;
 
 public final class FDUtil {
-    private static final Field fd = getField(FileDescriptor.class, "fd");
+    private static final MethodHandle fd = getterHandle(FileDescriptor.class, "fd");
 
     private FDUtil() {}
 
@@ -15,6 +15,10 @@ public final class FDUtil {
      * Returns the raw fd of {@link FileDescriptor}
      */
     public static int fdVal(FileDescriptor fileDescriptor) {
-        return (int) doReflection(() -> fd.get(fileDescriptor));
+        try {
+            return (int) fd.invokeExact((Object) fileDescriptor);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 }
@@ -0,0 +1,64 @@
+package com.mayreh.jktls;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import lombok.Getter;
+import lombok.experimental.Accessors;
+
+/**
+ * An ongoing file transfer from a {@link FileChannel} to a {@link KTlsSocketChannel}.
+ * <p>
+ * This is intended to be driven by a selector loop on a non-blocking channel.
+ * Call {@link #transfer()} once, then call it again whenever the channel becomes writable
+ * (i.e. {@link java.nio.channels.SelectionKey#OP_WRITE}) until {@link #isDone()} returns true.
+ * <p>
+ * This class is not thread-safe.
+ */
+@Accessors(fluent = true)
+public class FileTransfer {
+    private final KTlsSocketChannel channel;
+    @Getter
+    private final FileChannel file;
+    @Getter
+    private long position;
+    @Getter
+    private long remaining;
+    @Getter
+    private long transferred;
+
+    FileTransfer(KTlsSocketChannel channel, FileChannel file, long position, long count) {
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException(
+                    String.format("Negative position or count: position=%d, count=%d", position, count));
+        }
+        this.channel = channel;
+        this.file = file;
+        this.position = position;
+        remaining = count;
+    }
+
+    /**
+     * Transfers as many bytes as possible without blocking if the channel is in non-blocking mode.
+     *
+     * @return the number of bytes transferred by this call, which may be zero
+     */
+    public long transfer() throws IOException {
+        if (isDone()) {
+            return 0;
+        }
+        long n = channel.transferFrom(file, position, remaining);
+        position += n;
+        remaining -= n;
+        transferred += n;
+        if (n == 0 && position >= file.size()) {
+            // The file is shorter than requested count
+            remaining = 0;
+        }
+        return n;
+    }
+
+    public boolean isDone() {
+        return remaining == 0;
+    }
+}
@@ -0,0 +1,180 @@
+package com.mayreh.jktls;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.Accessors;
+
+/**
+ * Kernel TLS features supported by the running kernel, which are detected once by {@link #probe()}.
+ * <p>
+ * Probing installs TLS ULP and sets crypto info with dummy keys on sockets connected over the loopback interface,
+ * for each pair of TLS version and cipher type.
+ * The result is cached, so that per-connection code can choose the path by a field read
+ * instead of failing setsockopt(2) and constructing exceptions.
+ * It's recommended to call {@link #probe()} at startup since probing takes a few milliseconds.
+ */
+@Accessors(fluent = true)
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+public final class KTlsCapabilities {
+    static final KTlsCapabilities UNSUPPORTED = new KTlsCapabilities(
+            false, Collections.emptySet(), Collections.emptySet(), false);
+
+    /**
+     * Whether TLS ULP can be installed, i.e. the tls module is available
+     */
+    @Getter
+    private final boolean ulpSupported;
+    private final Set<CipherSuite> txSuites;
+    private final Set<CipherSuite> rxSuites;
+    /**
+     * Whether {@link KTlsSocketOptions#TLS_TX_ZEROCOPY_RO} is accepted
+     */
+    @Getter
+    private final boolean txZeroCopySupported;
+
+    /**
+     * Returns the capabilities of the running kernel, probing them on the first call.
+     */
+    public static KTlsCapabilities probe() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Whether transmission can be offloaded with the cipher suite
+     */
+    public boolean isTxSupported(String protocol, String cipherSuite) {
+        return CipherSuite.isSupported(protocol, cipherSuite) &&
+               txSuites.contains(CipherSuite.of(protocol, cipherSuite));
+    }
+
+    /**
+     * Whether reception can be offloaded with the cipher suite
+     */
+    public boolean isRxSupported(String protocol, String cipherSuite) {
+        return CipherSuite.isSupported(protocol, cipherSuite) &&
+               rxSuites.contains(CipherSuite.of(protocol, cipherSuite));
+    }
+
+    /**
+     * Whether both directions can be offloaded with the cipher suite
+     */
+    public boolean isSupported(String protocol, String cipherSuite) {
+        return isTxSupported(protocol, cipherSuite) && isRxSupported(protocol, cipherSuite);
+    }
+
+    /**
+     * Whether both directions can be offloaded with the cipher suite, whose protocol is implied by the name
+     */
+    boolean isSupported(String cipherSuite) {
+        for (CipherSuite suite : CipherSuite.values()) {
+            if (suite.name().equals(cipherSuite)) {
+                return txSuites.contains(suite) && rxSuites.contains(suite);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("KTlsCapabilities(ulp=%s, tx=%s, rx=%s, txZeroCopy=%s)",
+                             ulpSupported, txSuites, rxSuites, txZeroCopySupported);
+    }
+
+    private static KTlsCapabilities detect() {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            Set<CipherSuite> txSuites = EnumSet.noneOf(CipherSuite.class);
+            Set<CipherSuite> rxSuites = EnumSet.noneOf(CipherSuite.class);
+            Boolean txZeroCopy = null;
+            for (CipherSuite suite : CipherSuite.values()) {
+                if (hasPrecedingVariant(suite)) {
+                    continue;
+                }
+                // ULP and crypto info can be set only once per socket, so every probe needs a new connection
+                try (SocketChannel client = SocketChannel.open(server.getLocalAddress())) {
+                    // The accepted end is kept open until the probe is done so that the connection stays established
+                    SocketChannel accepted = server.accept();
+                    try {
+                        KTlsSocketChannel channel = KTlsSocketChannel.wrap(client);
+                        if (!trySet(channel, KTlsSocketOptions.TCP_ULP, "tls")) {
+                            return UNSUPPORTED;
+                        }
+                        TlsCryptoInfo info = dummyInfo(suite);
+                        boolean tx = trySet(channel, KTlsSocketOptions.TLS_TX, info);
+                        boolean rx = trySet(channel, KTlsSocketOptions.TLS_RX, info);
+                        if (tx && txZeroCopy == null) {
+                            txZeroCopy = trySet(channel, KTlsSocketOptions.TLS_TX_ZEROCOPY_RO, true);
+                        }
+                        // Support depends only on the pair of TLS version and cipher type
+                        for (CipherSuite s : CipherSuite.values()) {
+                            if (s.version == suite.version && s.cipherType == suite.cipherType) {
+                                if (tx) {
+                                    txSuites.add(s);
+                                }
+                                if (rx) {
+                                    rxSuites.add(s);
+                                }
+                            }
+                        }
+                    } finally {
+                        accepted.close();
+                    }
+                }
+            }
+            return new KTlsCapabilities(true, txSuites, rxSuites, Boolean.TRUE.equals(txZeroCopy));
+        } catch (IOException | LinkageError | UnsupportedOperationException e) {
+            // e.g. The native library is not available on the platform
+            return UNSUPPORTED;
+        }
+    }
+
+    /**
+     * Returns true if a preceding suite has the same TLS version and cipher type, i.e. it was already probed
+     */
+    private static boolean hasPrecedingVariant(CipherSuite suite) {
+        for (CipherSuite s : CipherSuite.values()) {
+            if (s == suite) {
+                return false;
+            }
+            if (s.version == suite.version && s.cipherType == suite.cipherType) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static <T> boolean trySet(KTlsSocketChannel channel, SocketOption<T> name, T value) {
+        try {
+            channel.setOption(name, value);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private static TlsCryptoInfo dummyInfo(CipherSuite suite) {
+        CipherType type = suite.cipherType;
+        return new TlsCryptoInfo(suite.version.protocol,
+                                 suite.name(),
+                                 new byte[type.ivSize],
+                                 new byte[type.keySize],
+                                 new byte[type.saltSize],
+                                 new byte[type.recSeqSize]);
+    }
+
+    private static class Holder {
+        static final KTlsCapabilities INSTANCE = detect();
+    }
+}
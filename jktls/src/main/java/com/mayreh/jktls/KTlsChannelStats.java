@@ -0,0 +1,104 @@
+package com.mayreh.jktls;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of IO operations on a {@link KTlsSocketChannel}.
+ * Every update is also applied to {@link #TOTAL}, which aggregates all channels in the JVM.
+ * This class is thread-safe.
+ */
+public class KTlsChannelStats {
+    /**
+     * Counters aggregated over all channels, which are exposed by {@link KTlsStats} via JMX
+     */
+    public static final KTlsChannelStats TOTAL = new KTlsChannelStats(null);
+
+    private final KTlsChannelStats parent;
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder bytesTransferred = new LongAdder();
+    private final LongAdder sendfileCalls = new LongAdder();
+    private final LongAdder partialSends = new LongAdder();
+    private final LongAdder unavailable = new LongAdder();
+
+    KTlsChannelStats() {
+        this(TOTAL);
+    }
+
+    private KTlsChannelStats(KTlsChannelStats parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Bytes written by write methods, including the ones written by native writes
+     */
+    public long bytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * Bytes sent by {@code transferFrom} methods, i.e. by sendfile(2) or splice(2)
+     */
+    public long bytesTransferred() {
+        return bytesTransferred.sum();
+    }
+
+    /**
+     * Number of sendfile(2) calls
+     */
+    public long sendfileCalls() {
+        return sendfileCalls.sum();
+    }
+
+    /**
+     * Number of write or transfer operations which sent fewer bytes than requested
+     */
+    public long partialSends() {
+        return partialSends.sum();
+    }
+
+    /**
+     * Number of times the socket was not ready (EAGAIN) on write or transfer,
+     * including the times the virtual thread was parked on native writes, sendfile(2) or splice(2)
+     */
+    public long unavailable() {
+        return unavailable.sum();
+    }
+
+    void recordWrite(long requested, long written) {
+        if (written > 0) {
+            bytesWritten.add(written);
+        }
+        if (written < requested) {
+            partialSends.increment();
+        }
+        if (parent != null) {
+            parent.recordWrite(requested, written);
+        }
+    }
+
+    void recordTransfer(long requested, long transferred) {
+        if (transferred > 0) {
+            bytesTransferred.add(transferred);
+        }
+        if (transferred < requested) {
+            partialSends.increment();
+        }
+        if (parent != null) {
+            parent.recordTransfer(requested, transferred);
+        }
+    }
+
+    void recordSendfileCall() {
+        sendfileCalls.increment();
+        if (parent != null) {
+            parent.recordSendfileCall();
+        }
+    }
+
+    void recordUnavailable() {
+        unavailable.increment();
+        if (parent != null) {
+            parent.recordUnavailable();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.mayreh.jktls;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+
+import lombok.Setter;
+
+/**
+ * Opens TLS connections to servers, which are switched to kernel TLS for both directions
+ * once the handshake is done by {@link SSLEngine} in client mode.
+ * <p>
+ * The handshake is performed by {@link KTlsHandshaker} on the non-blocking channel, waiting for readiness
+ * by a selector, and the channel is restored to its original blocking mode afterwards.
+ * <p>
+ * On TLS 1.3, the server may send NewSessionTicket after the handshake, which is discarded by reads
+ * from the returned channel. Hence TLS 1.3 sessions are not resumed.
+ * <p>
+ * This class is thread-safe.
+ */
+public class KTlsConnector {
+    private final SSLContext sslContext;
+    private final Executor taskExecutor;
+    /**
+     * Max time to wait for the server during the handshake in milliseconds. 0 means no timeout
+     */
+    @Setter
+    private volatile long handshakeTimeoutMillis;
+
+    /**
+     * Create a connector which runs delegated tasks on the calling thread.
+     */
+    public KTlsConnector(SSLContext sslContext) {
+        this(sslContext, Runnable::run);
+    }
+
+    public KTlsConnector(SSLContext sslContext, Executor taskExecutor) {
+        this.sslContext = sslContext;
+        this.taskExecutor = taskExecutor;
+    }
+
+    /**
+     * Connect to the server, which is also used as the peer host for SNI and session caching.
+     * The returned channel is in blocking mode.
+     */
+    public KTlsSocketChannel connect(InetSocketAddress address) throws IOException {
+        SSLEngine engine = sslContext.createSSLEngine(address.getHostString(), address.getPort());
+        engine.setUseClientMode(true);
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.connect(address);
+            return connect(channel, engine);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Perform the handshake over the connected channel by the engine, then switch the channel to kernel TLS.
+     * @param engine configured in client mode
+     * @throws SSLException if the handshake failed
+     * @throws SocketTimeoutException if the handshake didn't finish in time
+     */
+    public KTlsSocketChannel connect(SocketChannel channel, SSLEngine engine) throws IOException {
+        return connect(channel, engine, handshakeTimeoutMillis);
+    }
+
+    /**
+     * Same as {@link #connect(SocketChannel, SSLEngine)} but with the timeout given per call
+     * (e.g. SO_TIMEOUT of {@link KTlsSocket})
+     */
+    KTlsSocketChannel connect(SocketChannel channel, SSLEngine engine, long timeoutMillis) throws IOException {
+        if (!engine.getUseClientMode()) {
+            throw new IllegalArgumentException("SSLEngine is not in client mode");
+        }
+        boolean blocking = channel.isBlocking();
+        channel.configureBlocking(false);
+        KTlsHandshaker handshaker = new KTlsHandshaker(channel, engine, taskExecutor);
+        try {
+            handshake(channel, handshaker, timeoutMillis);
+            return handshaker.complete();
+        } finally {
+            handshaker.release();
+            // Restore even on failure, since the caller may retry or close gracefully on the channel
+            if (channel.isOpen()) {
+                channel.configureBlocking(blocking);
+            }
+        }
+    }
+
+    /**
+     * Advance the handshake until it finishes. The selector is closed on return,
+     * so that the channel is deregistered and its blocking mode can be changed.
+     */
+    private static void handshake(SocketChannel channel,
+                                  KTlsHandshaker handshaker,
+                                  long timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try (Selector selector = Selector.open()) {
+            SelectionKey key = channel.register(selector, 0);
+            while (true) {
+                switch (handshaker.advance()) {
+                    case NEED_READ:
+                        key.interestOps(SelectionKey.OP_READ);
+                        break;
+                    case NEED_WRITE:
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        break;
+                    case NEED_TASK:
+                        // Failure is reported by the next advance()
+                        handshaker.delegatedTasks().handle((v, e) -> null).join();
+                        continue;
+                    case FINISHED:
+                        return;
+                    case CLOSED:
+                        throw new SSLException("Connection closed during the handshake");
+                }
+                if (timeoutMillis > 0) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("Handshake timed out");
+                    }
+                    selector.select(remaining);
+                } else {
+                    selector.select();
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+    }
+}
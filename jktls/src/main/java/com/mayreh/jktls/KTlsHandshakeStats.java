@@ -0,0 +1,52 @@
+package com.mayreh.jktls;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of handshakes completed by {@link KTlsHandshaker}, which tell how often sessions are resumed.
+ * Resumed (abbreviated) handshakes skip the certificate and key exchange, so a low resumption rate during
+ * reconnect storms means the session cache or tickets are not working.
+ * This class is thread-safe.
+ */
+public class KTlsHandshakeStats {
+    /**
+     * Counters aggregated over all handshakes, which are exposed by {@link KTlsStats} via JMX
+     */
+    public static final KTlsHandshakeStats TOTAL = new KTlsHandshakeStats();
+
+    private final LongAdder fullHandshakes = new LongAdder();
+    private final LongAdder resumedHandshakes = new LongAdder();
+
+    KTlsHandshakeStats() {}
+
+    /**
+     * Number of handshakes which established a new session
+     */
+    public long fullHandshakes() {
+        return fullHandshakes.sum();
+    }
+
+    /**
+     * Number of handshakes which resumed a session by session ID, ticket or PSK
+     */
+    public long resumedHandshakes() {
+        return resumedHandshakes.sum();
+    }
+
+    /**
+     * Ratio of resumed handshakes to all handshakes, or 0 if no handshake has completed
+     */
+    public double resumptionRate() {
+        long resumed = resumedHandshakes();
+        long total = resumed + fullHandshakes();
+        return total == 0 ? 0 : (double) resumed / total;
+    }
+
+    void recordHandshake(boolean resumed) {
+        if (resumed) {
+            resumedHandshakes.increment();
+        } else {
+            fullHandshakes.increment();
+        }
+    }
+}
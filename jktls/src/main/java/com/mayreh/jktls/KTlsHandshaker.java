@@ -0,0 +1,336 @@
+package com.mayreh.jktls;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+import com.mayreh.jktls.sun.security.ssl.HandshakeContext;
+import com.mayreh.jktls.sun.security.ssl.SSLEngineImpl;
+
+import lombok.Getter;
+import lombok.experimental.Accessors;
+
+/**
+ * Performs TLS handshake over a non-blocking {@link SocketChannel}, then switches the channel to kernel TLS.
+ * <p>
+ * The handshake is advanced only on readiness events.
+ * Call {@link #advance()} once, then call it again whenever the channel becomes ready for the operation
+ * which the returned {@link Status} tells, until it returns {@link Status#FINISHED}.
+ * Delegated tasks of the engine (e.g. RSA or ECDHE computation) run on the given executor,
+ * and {@link #advance()} should be called again once {@link #delegatedTasks()} completes.
+ * Finally call {@link #complete()} to install kernel TLS.
+ * <p>
+ * The engine must be configured (e.g. {@link SSLEngine#setUseClientMode(boolean)}) before the first
+ * {@link #advance()}.
+ * <p>
+ * Blocking channels are also supported. In that case, {@link #advance()} with the calling-thread executor
+ * returns either {@link Status#FINISHED} or {@link Status#CLOSED} at once, which is handy with virtual threads.
+ * <p>
+ * This class is not thread-safe.
+ */
+@Accessors(fluent = true)
+public class KTlsHandshaker {
+    public enum Status {
+        /**
+         * Wait until the channel becomes readable
+         */
+        NEED_READ,
+        /**
+         * Wait until the channel becomes writable
+         */
+        NEED_WRITE,
+        /**
+         * Wait until {@link #delegatedTasks()} completes
+         */
+        NEED_TASK,
+        /**
+         * The handshake has finished. Call {@link #complete()} to switch to kernel TLS
+         */
+        FINISHED,
+        /**
+         * The channel or the engine was closed during the handshake
+         */
+        CLOSED,
+    }
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    @Getter
+    private final SSLEngine engine;
+    private final Executor taskExecutor;
+    private final BufferPool bufferPool;
+    // Handshake buffers borrowed from the pool, which are released once the handshake completes.
+    // Outbound handshake data which is not written yet. Always in read mode
+    private ByteBuffer netData;
+    // Inbound data which is not unwrapped yet. Always in write mode
+    private ByteBuffer peerNetData;
+    private ByteBuffer peerAppData;
+    private CompletableFuture<Void> delegatedTasks = CompletableFuture.completedFuture(null);
+    private boolean started;
+    // Latched while the handshake is in progress, since JSSE discards the handshake state once finished
+    private boolean resumed;
+
+    /**
+     * Create a handshaker which runs delegated tasks on the calling thread.
+     */
+    public KTlsHandshaker(SocketChannel channel, SSLEngine engine) {
+        this(channel, engine, Runnable::run);
+    }
+
+    /**
+     * Create a handshaker which borrows handshake buffers from {@link BufferPool#SHARED}.
+     */
+    public KTlsHandshaker(SocketChannel channel, SSLEngine engine, Executor taskExecutor) {
+        this(channel, engine, taskExecutor, BufferPool.SHARED);
+    }
+
+    public KTlsHandshaker(SocketChannel channel,
+                          SSLEngine engine,
+                          Executor taskExecutor,
+                          BufferPool bufferPool) {
+        this.channel = channel;
+        this.engine = engine;
+        this.taskExecutor = taskExecutor;
+        this.bufferPool = bufferPool;
+        netData = bufferPool.acquire(engine.getSession().getPacketBufferSize());
+        netData.flip();
+        peerNetData = bufferPool.acquire(engine.getSession().getPacketBufferSize());
+        peerAppData = bufferPool.acquire(engine.getSession().getApplicationBufferSize());
+    }
+
+    /**
+     * Advance the handshake as far as possible without blocking.
+     * @return what the handshake is waiting for
+     * @throws SSLException if the handshake failed
+     */
+    public Status advance() throws IOException {
+        if (!delegatedTasks.isDone()) {
+            return Status.NEED_TASK;
+        }
+        checkDelegatedTasks();
+        if (!started) {
+            engine.beginHandshake();
+            started = true;
+        }
+        if (!flush()) {
+            return Status.NEED_WRITE;
+        }
+
+        while (true) {
+            checkResumption();
+            HandshakeStatus status = engine.getHandshakeStatus();
+            switch (status) {
+                case NEED_WRAP: {
+                    netData.clear();
+                    SSLEngineResult result = engine.wrap(EMPTY, netData);
+                    netData.flip();
+                    switch (result.getStatus()) {
+                        case BUFFER_OVERFLOW:
+                            ByteBuffer newNetData = bufferPool.acquire(Math.max(
+                                    engine.getSession().getPacketBufferSize(), netData.capacity() * 2));
+                            bufferPool.release(netData);
+                            netData = newNetData;
+                            netData.flip();
+                            break;
+                        case CLOSED:
+                            flush();
+                            return Status.CLOSED;
+                        default:
+                            break;
+                    }
+                    if (!flush()) {
+                        return Status.NEED_WRITE;
+                    }
+                    break;
+                }
+                case NEED_UNWRAP: {
+                    peerNetData.flip();
+                    SSLEngineResult result = engine.unwrap(peerNetData, peerAppData);
+                    peerNetData.compact();
+                    switch (result.getStatus()) {
+                        case BUFFER_UNDERFLOW:
+                            if (!peerNetData.hasRemaining()) {
+                                peerNetData = enlarge(peerNetData, engine.getSession().getPacketBufferSize());
+                            }
+                            int read = channel.read(peerNetData);
+                            if (read < 0) {
+                                return Status.CLOSED;
+                            }
+                            if (read == 0) {
+                                return Status.NEED_READ;
+                            }
+                            break;
+                        case BUFFER_OVERFLOW:
+                            peerAppData = enlarge(peerAppData, engine.getSession().getApplicationBufferSize());
+                            break;
+                        case CLOSED:
+                            return Status.CLOSED;
+                        default:
+                            break;
+                    }
+                    break;
+                }
+                case NEED_TASK:
+                    delegatedTasks = CompletableFuture.runAsync(this::runDelegatedTasks, taskExecutor);
+                    if (!delegatedTasks.isDone()) {
+                        return Status.NEED_TASK;
+                    }
+                    checkDelegatedTasks();
+                    break;
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    return completeRecord();
+                default:
+                    throw new IllegalStateException("Bug. Got status: " + status);
+            }
+        }
+    }
+
+    /**
+     * The completion of delegated tasks which the handshake is waiting for.
+     * Already completed unless {@link #advance()} returned {@link Status#NEED_TASK}.
+     */
+    public CompletableFuture<Void> delegatedTasks() {
+        return delegatedTasks;
+    }
+
+    /**
+     * Switch the channel to kernel TLS for both directions by {@link KTlsSocketChannel#upgrade}.
+     * Records which were read from the channel along with the handshake messages
+     * (e.g. TLS 1.3 client may send application data right after its Finished message)
+     * are decrypted in user space, and returned by the first reads from the returned channel.
+     * Handshake buffers are returned to the pool.
+     * @throws IllegalStateException if the handshake has not finished
+     */
+    public KTlsSocketChannel complete() throws IOException {
+        if (peerNetData == null) {
+            throw new IllegalStateException("Already completed or released");
+        }
+        HandshakeStatus status = engine.getHandshakeStatus();
+        if (netData.hasRemaining() ||
+            (status != HandshakeStatus.FINISHED && status != HandshakeStatus.NOT_HANDSHAKING)) {
+            throw new IllegalStateException("Handshake has not finished");
+        }
+
+        peerNetData.flip();
+        KTlsSocketChannel kTlsChannel = KTlsSocketChannel.upgrade(channel, engine, peerNetData);
+        release();
+        KTlsHandshakeStats.TOTAL.recordHandshake(isResumed());
+        return kTlsChannel;
+    }
+
+    /**
+     * Whether the handshake resumed an existing session (e.g. by session ID, ticket or TLS 1.3 PSK),
+     * which is valid once the handshake has finished.
+     * <p>
+     * JSSE doesn't expose it, so it's taken from JSSE's internal handshake state while the handshake is in progress.
+     * Always false for other {@link SSLEngine} implementations.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    private void checkResumption() {
+        if (resumed || !SSLEngineImpl.isInstance(engine)) {
+            return;
+        }
+        HandshakeContext context = new SSLEngineImpl(engine).conContext().handshakeContext();
+        resumed = context != null && context.isResumption();
+    }
+
+    /**
+     * Return the handshake buffers to the pool.
+     * Called by {@link #complete()}, so it's necessary only when the handshake is abandoned (e.g. on failure).
+     * The handshaker can't be used after this call. Subsequent calls are no-op.
+     */
+    public void release() {
+        if (netData != null) {
+            bufferPool.release(netData);
+            bufferPool.release(peerNetData);
+            bufferPool.release(peerAppData);
+            netData = null;
+            peerNetData = null;
+            peerAppData = null;
+        }
+    }
+
+    /**
+     * Read the rest of the last record which was partially read along with the handshake messages,
+     * since the kernel can take over only at a record boundary.
+     * Never reads beyond the record, which is to be decrypted by the kernel.
+     */
+    private Status completeRecord() throws IOException {
+        while (true) {
+            ByteBuffer pending = peerNetData.duplicate();
+            pending.flip();
+            int missing = KTlsSocketChannel.missingRecordBytes(pending);
+            if (missing == 0) {
+                return Status.FINISHED;
+            }
+            if (peerNetData.remaining() < missing) {
+                peerNetData = enlarge(peerNetData, peerNetData.position() + missing);
+            }
+            int limit = peerNetData.limit();
+            peerNetData.limit(peerNetData.position() + missing);
+            int read;
+            try {
+                read = channel.read(peerNetData);
+            } finally {
+                peerNetData.limit(limit);
+            }
+            if (read < 0) {
+                return Status.CLOSED;
+            }
+            if (read == 0) {
+                return Status.NEED_READ;
+            }
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void checkDelegatedTasks() throws SSLException {
+        try {
+            delegatedTasks.join();
+        } catch (CompletionException e) {
+            throw new SSLException("Delegated task failed", e.getCause());
+        }
+    }
+
+    /**
+     * @return true if all pending handshake data was written
+     */
+    private boolean flush() throws IOException {
+        while (netData.hasRemaining()) {
+            if (channel.write(netData) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Grow the buffer preserving its content. The buffer must be in write mode.
+     */
+    private ByteBuffer enlarge(ByteBuffer buffer, int proposedCapacity) {
+        ByteBuffer newBuffer = bufferPool.acquire(Math.max(proposedCapacity, buffer.capacity() * 2));
+        buffer.flip();
+        newBuffer.put(buffer);
+        bufferPool.release(buffer);
+        return newBuffer;
+    }
+}
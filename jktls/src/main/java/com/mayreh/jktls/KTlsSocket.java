@@ -0,0 +1,598 @@
+package com.mayreh.jktls;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * {@link SSLSocket} facade over {@link KTlsSocketChannel}, which lets stream-based code (e.g. JDBC drivers or
+ * HTTP clients) utilize kernel TLS.
+ * <p>
+ * The handshake is done by {@link SSLEngine} on the first {@link #startHandshake()} or stream access
+ * as well as JSSE's sockets, and then the socket is switched to kernel TLS.
+ * Streams read and write plaintext on the socket directly without buffering in user space,
+ * waiting for readiness by a selector so that {@link #setSoTimeout(int)} is honored.
+ * <p>
+ * Created by {@link KTlsSocketFactory}.
+ */
+public class KTlsSocket extends SSLSocket {
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final KTlsConnector connector;
+    private final List<HandshakeCompletedListener> listeners = new CopyOnWriteArrayList<>();
+
+    // Threads wait for readiness while holding the locks, so j.u.c locks are used rather than monitors
+    // which pin the carrier thread of virtual threads
+    private final ReentrantLock handshakeLock = new ReentrantLock();
+    private volatile KTlsSocketChannel kTlsChannel;
+    private volatile int soTimeout;
+
+    private final InputStream inputStream = new KTlsInputStream();
+    private final OutputStream outputStream = new KTlsOutputStream();
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Selectors to wait for readiness, which are opened lazily and kept until the socket is closed
+    private volatile Selector readSelector;
+    private volatile Selector writeSelector;
+
+    /**
+     * @param channel in blocking mode, which may be unconnected yet
+     * @param engine configured in client mode
+     */
+    KTlsSocket(SocketChannel channel, SSLEngine engine, KTlsConnector connector) {
+        this.channel = channel;
+        this.engine = engine;
+        this.connector = connector;
+    }
+
+    @Override
+    public void startHandshake() throws IOException {
+        handshakeLock.lock();
+        try {
+            if (kTlsChannel != null) {
+                return;
+            }
+            if (isClosed()) {
+                throw new SocketException("Socket is closed");
+            }
+            if (!isConnected()) {
+                throw new SocketException("Socket is not connected");
+            }
+            KTlsSocketChannel ch = connector.connect(channel, engine, soTimeout);
+            channel.configureBlocking(false);
+            kTlsChannel = ch;
+        } finally {
+            handshakeLock.unlock();
+        }
+        if (!listeners.isEmpty()) {
+            HandshakeCompletedEvent event = new HandshakeCompletedEvent(this, engine.getSession());
+            for (HandshakeCompletedListener listener : listeners) {
+                listener.handshakeCompleted(event);
+            }
+        }
+    }
+
+    @Override
+    public SSLSession getSession() {
+        try {
+            startHandshake();
+        } catch (IOException e) {
+            // Same as JSSE, which returns an invalid session on failure
+        }
+        return engine.getSession();
+    }
+
+    @Override
+    public SSLSession getHandshakeSession() {
+        return engine.getHandshakeSession();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        startHandshake();
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        startHandshake();
+        return outputStream;
+    }
+
+    /**
+     * Returns true if TLS is offloaded to the kernel, i.e. the handshake has finished
+     */
+    public boolean isKernelTls() {
+        return kTlsChannel != null;
+    }
+
+    @Override
+    public void addHandshakeCompletedListener(HandshakeCompletedListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener is null");
+        }
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeHandshakeCompletedListener(HandshakeCompletedListener listener) {
+        if (!listeners.remove(listener)) {
+            throw new IllegalArgumentException("listener is not registered");
+        }
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return engine.getSupportedCipherSuites();
+    }
+
+    /**
+     * Cipher suites which are not supported by the kernel (see {@link KTlsCapabilities}) fail the handshake
+     * once negotiated.
+     */
+    @Override
+    public String[] getEnabledCipherSuites() {
+        return engine.getEnabledCipherSuites();
+    }
+
+    @Override
+    public void setEnabledCipherSuites(String[] suites) {
+        engine.setEnabledCipherSuites(suites);
+    }
+
+    @Override
+    public String[] getSupportedProtocols() {
+        return engine.getSupportedProtocols();
+    }
+
+    @Override
+    public String[] getEnabledProtocols() {
+        return engine.getEnabledProtocols();
+    }
+
+    @Override
+    public void setEnabledProtocols(String[] protocols) {
+        engine.setEnabledProtocols(protocols);
+    }
+
+    @Override
+    public void setUseClientMode(boolean mode) {
+        if (!mode) {
+            throw new IllegalArgumentException("Only client mode is supported");
+        }
+    }
+
+    @Override
+    public boolean getUseClientMode() {
+        return true;
+    }
+
+    @Override
+    public void setNeedClientAuth(boolean need) {
+        engine.setNeedClientAuth(need);
+    }
+
+    @Override
+    public boolean getNeedClientAuth() {
+        return engine.getNeedClientAuth();
+    }
+
+    @Override
+    public void setWantClientAuth(boolean want) {
+        engine.setWantClientAuth(want);
+    }
+
+    @Override
+    public boolean getWantClientAuth() {
+        return engine.getWantClientAuth();
+    }
+
+    @Override
+    public void setEnableSessionCreation(boolean flag) {
+        engine.setEnableSessionCreation(flag);
+    }
+
+    @Override
+    public boolean getEnableSessionCreation() {
+        return engine.getEnableSessionCreation();
+    }
+
+    @Override
+    public SSLParameters getSSLParameters() {
+        return engine.getSSLParameters();
+    }
+
+    @Override
+    public void setSSLParameters(SSLParameters params) {
+        engine.setSSLParameters(params);
+    }
+
+    @Override
+    public void connect(SocketAddress endpoint) throws IOException {
+        connect(endpoint, 0);
+    }
+
+    @Override
+    public void connect(SocketAddress endpoint, int timeout) throws IOException {
+        channel.socket().connect(endpoint, timeout);
+    }
+
+    @Override
+    public void bind(SocketAddress bindpoint) throws IOException {
+        channel.socket().bind(bindpoint);
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return channel.socket().getInetAddress();
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        return channel.socket().getLocalAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return channel.socket().getPort();
+    }
+
+    @Override
+    public int getLocalPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return channel.socket().getRemoteSocketAddress();
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        return channel.socket().getLocalSocketAddress();
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) throws SocketException {
+        channel.socket().setTcpNoDelay(on);
+    }
+
+    @Override
+    public boolean getTcpNoDelay() throws SocketException {
+        return channel.socket().getTcpNoDelay();
+    }
+
+    @Override
+    public void setSoLinger(boolean on, int linger) throws SocketException {
+        channel.socket().setSoLinger(on, linger);
+    }
+
+    @Override
+    public int getSoLinger() throws SocketException {
+        return channel.socket().getSoLinger();
+    }
+
+    @Override
+    public void sendUrgentData(int data) throws IOException {
+        throw new SocketException("Urgent data is not supported by TLS");
+    }
+
+    @Override
+    public void setOOBInline(boolean on) throws SocketException {
+        throw new SocketException("Urgent data is not supported by TLS");
+    }
+
+    @Override
+    public boolean getOOBInline() throws SocketException {
+        return false;
+    }
+
+    /**
+     * Timeout of the handshake and reads in milliseconds. 0 means no timeout
+     */
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout can't be negative");
+        }
+        soTimeout = timeout;
+    }
+
+    @Override
+    public int getSoTimeout() {
+        return soTimeout;
+    }
+
+    @Override
+    public void setSendBufferSize(int size) throws SocketException {
+        channel.socket().setSendBufferSize(size);
+    }
+
+    @Override
+    public int getSendBufferSize() throws SocketException {
+        return channel.socket().getSendBufferSize();
+    }
+
+    @Override
+    public void setReceiveBufferSize(int size) throws SocketException {
+        channel.socket().setReceiveBufferSize(size);
+    }
+
+    @Override
+    public int getReceiveBufferSize() throws SocketException {
+        return channel.socket().getReceiveBufferSize();
+    }
+
+    @Override
+    public void setKeepAlive(boolean on) throws SocketException {
+        channel.socket().setKeepAlive(on);
+    }
+
+    @Override
+    public boolean getKeepAlive() throws SocketException {
+        return channel.socket().getKeepAlive();
+    }
+
+    @Override
+    public void setTrafficClass(int tc) throws SocketException {
+        channel.socket().setTrafficClass(tc);
+    }
+
+    @Override
+    public int getTrafficClass() throws SocketException {
+        return channel.socket().getTrafficClass();
+    }
+
+    @Override
+    public void setReuseAddress(boolean on) throws SocketException {
+        channel.socket().setReuseAddress(on);
+    }
+
+    @Override
+    public boolean getReuseAddress() throws SocketException {
+        return channel.socket().getReuseAddress();
+    }
+
+    /**
+     * Send close_notify, then shut down the output
+     */
+    @Override
+    public void shutdownOutput() throws IOException {
+        KTlsSocketChannel ch = kTlsChannel;
+        if (ch != null && !isOutputShutdown()) {
+            writeLock.lock();
+            try {
+                while (!ch.sendCloseNotify()) {
+                    writeSelector = await(writeSelector, SelectionKey.OP_WRITE, 0);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        channel.shutdownOutput();
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        channel.shutdownInput();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return channel.isConnected();
+    }
+
+    @Override
+    public boolean isBound() {
+        return channel.socket().isBound();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return channel.socket().isInputShutdown();
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return channel.socket().isOutputShutdown();
+    }
+
+    /**
+     * Send close_notify as far as possible without blocking, then close the socket
+     */
+    @Override
+    public void close() throws IOException {
+        KTlsSocketChannel ch = kTlsChannel;
+        try {
+            if (ch != null && ch.isOpen() && !isOutputShutdown()) {
+                ch.sendCloseNotify();
+            }
+        } catch (IOException e) {
+            // Best effort
+        } finally {
+            try {
+                channel.close();
+            } finally {
+                closeSelector(readSelector);
+                closeSelector(writeSelector);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "KTlsSocket[" + channel + ", kernelTls=" + isKernelTls() + "]";
+    }
+
+    /**
+     * Wait until the channel becomes ready for the operation.
+     * @param selector nullable, which is opened on the first call
+     * @param timeoutMillis 0 means no timeout
+     * @return the selector to pass to the next call
+     * @throws SocketTimeoutException if the channel didn't become ready in time
+     */
+    private Selector await(Selector selector, int ops, long timeoutMillis) throws IOException {
+        if (selector == null) {
+            selector = Selector.open();
+            try {
+                channel.register(selector, ops);
+            } catch (ClosedChannelException e) {
+                selector.close();
+                throw new SocketException("Socket is closed");
+            }
+        }
+        int selected;
+        try {
+            selected = selector.select(timeoutMillis);
+        } catch (ClosedSelectorException e) {
+            // close() closed the selector concurrently
+            throw new SocketException("Socket is closed");
+        }
+        if (isClosed()) {
+            // Woken up by close(), or the selector was opened after close() ran
+            closeSelector(selector);
+            throw new SocketException("Socket is closed");
+        }
+        if (selected == 0 && timeoutMillis > 0) {
+            throw new SocketTimeoutException("Read timed out");
+        }
+        selector.selectedKeys().clear();
+        return selector;
+    }
+
+    private static void closeSelector(Selector selector) throws IOException {
+        if (selector != null) {
+            selector.close();
+        }
+    }
+
+    private static void checkBounds(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException(
+                    String.format("offset=%d, length=%d, array length=%d", off, len, b.length));
+        }
+    }
+
+    private class KTlsInputStream extends InputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            readLock.lock();
+            try {
+                int n = read(single, 0, 1);
+                return n < 0 ? -1 : single[0] & 0xff;
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkBounds(b, off, len);
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+            readLock.lock();
+            try {
+                long timeoutMillis = soTimeout;
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                while (true) {
+                    int n;
+                    try {
+                        n = kTlsChannel.read(dst);
+                    } catch (ClosedChannelException e) {
+                        throw new SocketException("Socket is closed");
+                    }
+                    if (n != 0) {
+                        return n;
+                    }
+                    long remaining = timeoutMillis;
+                    if (timeoutMillis > 0) {
+                        remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                        if (remaining <= 0) {
+                            throw new SocketTimeoutException("Read timed out");
+                        }
+                    }
+                    readSelector = await(readSelector, SelectionKey.OP_READ, remaining);
+                }
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            KTlsSocket.this.close();
+        }
+    }
+
+    private class KTlsOutputStream extends OutputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            writeLock.lock();
+            try {
+                single[0] = (byte) b;
+                write(single, 0, 1);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkBounds(b, off, len);
+            ByteBuffer src = ByteBuffer.wrap(b, off, len);
+            writeLock.lock();
+            try {
+                while (src.hasRemaining()) {
+                    int n;
+                    try {
+                        n = kTlsChannel.write(src);
+                    } catch (ClosedChannelException e) {
+                        throw new SocketException("Socket is closed");
+                    }
+                    if (n == 0) {
+                        writeSelector = await(writeSelector, SelectionKey.OP_WRITE, 0);
+                    }
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            KTlsSocket.this.close();
+        }
+    }
+}
@@ -1,19 +1,36 @@
 package com.mayreh.jktls;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.net.SocketException;
 import java.net.SocketOption;
 import java.nio.ByteBuffer;
-import java.nio.channels.ByteChannel;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
-import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.NetworkChannel;
-import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
 
 import com.mayreh.jktls.sun.nio.ch.FileChannelImpl;
+import com.mayreh.jktls.sun.nio.ch.Net;
+import com.mayreh.jktls.sun.nio.ch.SelChImpl;
 import com.mayreh.jktls.sun.nio.ch.SocketChannelImpl;
+import com.mayreh.jktls.sun.security.ssl.SSLEngineImpl;
 
 import lombok.AccessLevel;
 import lombok.RequiredArgsConstructor;
@@ -22,48 +39,552 @@ import lombok.RequiredArgsConstructor;
  * A wrapper around {@link SocketChannel} with some tweaks to utilize kernel TLS.
  */
 @RequiredArgsConstructor(access = AccessLevel.PACKAGE)
-public class KTlsSocketChannel implements ByteChannel,
-                                          ScatteringByteChannel,
-                                          GatheringByteChannel,
-                                          NetworkChannel {
+public class KTlsSocketChannel implements SecureChannel, NetworkChannel {
     static {
         NativeLoader.load();
     }
 
+    // SOL_TLS level socket option names
+    private static final int TLS_TX = 1;
+    private static final int TLS_RX = 2;
+    private static final int TLS_TX_ZEROCOPY_RO = 3;
+
+    // Return values of native IO operations which follow sun.nio.ch.IOStatus
+    private static final long IOS_UNAVAILABLE = -2L;
+    private static final long IOS_INTERRUPTED = -3L;
+
+    // sendfile(2) transfers at most 0x7ffff000 bytes at once on Linux
+    private static final long MAX_SENDFILE_COUNT = 0x7ffff000L;
+
+    // Max number of buffers passed to single writev(2) call, which is far below IOV_MAX
+    private static final int MAX_IOV_COUNT = 64;
+    // sizeof(struct iovec) on 64-bit platforms
+    private static final int IOV_SIZE = 16;
+
+    // Default capacity of a pipe on Linux
+    private static final long PIPE_CAPACITY = 65536L;
+
+    // content type(1) + legacy version(2) + length(2)
+    private static final int TLS_RECORD_HEADER_SIZE = 5;
+    // Max length of TLSPlaintext.fragment
+    private static final int MAX_RECORD_PAYLOAD_SIZE = 16384;
+    // Alert of level warning(1) and description close_notify(0)
+    private static final byte[] CLOSE_NOTIFY = { 1, 0 };
+    // HandshakeType of TLS 1.3 KeyUpdate
+    private static final byte KEY_UPDATE = 24;
+    // msg_type(1) + length(3) + request_update(1)
+    private static final int KEY_UPDATE_MESSAGE_SIZE = 5;
+
+    private static native void enable(int fd, long address, int txCipher, int rxCipher);
     private static native void setTcpUlp(int fd, String name);
-    private static native void setTlsTx(
-            int fd, String protocol, String cipherSuite, byte[] iv, byte[] key, byte[] salt, byte[] recSeq);
+    private static native void setCryptoInfo(int fd, int optName, long address, int cipher);
     private static native long sendFile(int outFd, int inFd, long position, long count);
+    private static native long writev(int fd, long iovAddress, int iovCount);
+    private static native long sendRecord(int fd, byte contentType, long address, int length);
+    private static native long recvRecord(int fd, long address, int length);
+    private static native void setTlsIntOption(int fd, int optName, int value);
+    private static native long splice(int inFd, int outFd, long count);
+    private static native long pipe();
+    private static native void closeFd(int fd);
 
     private final SocketChannel delegate;
     private final SocketChannelImpl impl;
+    // Raw file descriptor of the delegate, which never changes through the channel's lifetime
+    private final int fd;
+
+    // Native IO may park the virtual thread while holding the locks, so j.u.c locks are used throughout the channel
+    // rather than monitors which pin the carrier thread
+    private final ReentrantLock nativeWriteLock = new ReentrantLock();
+    private volatile boolean nativeWriteEnabled;
+    // struct iovec[] which is allocated lazily and reused through native writes
+    private ByteBuffer iovecs;
+    private long iovecsAddress;
+
+    private final ReentrantLock spliceLock = new ReentrantLock();
+    // Intermediate pipe to splice from sockets, which is created lazily
+    private int pipeReadFd = -1;
+    private int pipeWriteFd = -1;
+    // The number of bytes which are read from the source but not written to this channel yet
+    private long pipeBuffered;
+
+    private final ReentrantLock readLock = new ReentrantLock();
+    // Application data decrypted in user space on upgrade, which is served before reading from the socket.
+    // Always in read mode, and null once consumed
+    private volatile ByteBuffer pendingPlaintext;
+    // Set on TLS 1.3 client connections, where the server sends post-handshake messages (e.g. NewSessionTicket)
+    // which would fail plain reads, so reads go through readRecord to skip them
+    private volatile boolean skipPostHandshake;
+
+    // Every write holds the read lock, and key update holds the write lock,
+    // so that no data is sent between KeyUpdate and switching the kernel to the next write key.
+    // Acquired before the other write-side locks
+    private final ReentrantReadWriteLock keyUpdateLock = new ReentrantReadWriteLock();
+    // TLS 1.3 traffic secrets to derive the next keys, which is null unless key update is enabled.
+    // The write secret is guarded by the write lock of keyUpdateLock, and the read secret is guarded by readLock
+    private volatile Tls13KeySchedule keySchedule;
+    // 0 means automatic key update is disabled
+    private volatile long keyUpdateThreshold;
+    private final AtomicLong bytesSinceKeyUpdate = new AtomicLong();
+    // Set when the peer requested key update but KeyUpdate couldn't be sent due to full send buffer
+    private volatile boolean keyUpdatePending;
+
+    private final KTlsChannelStats stats = new KTlsChannelStats();
 
     public static KTlsSocketChannel wrap(SocketChannel channel) {
         if (!SocketChannelImpl.isInstance(channel)) {
             throw new UnsupportedOperationException("Unsupported SocketChannel implementation");
         }
-        return new KTlsSocketChannel(channel, new SocketChannelImpl(channel));
+        SocketChannelImpl impl = new SocketChannelImpl(channel);
+        return new KTlsSocketChannel(channel, impl, FDUtil.fdVal(impl.getFD()));
+    }
+
+    /**
+     * Switch the channel, on which the TLS handshake was done by the engine, to kernel TLS for both directions.
+     * <p>
+     * The peer may have sent application data right after the handshake (e.g. TLS 1.3 clients or
+     * pipelining clients), which was read from the channel along with the handshake messages.
+     * Such records must be given as {@code pendingNetData}.
+     * They are decrypted by the engine first so that the kernel takes over from the next record
+     * with the matching sequence number, and the decrypted data is returned by the first reads
+     * from the returned channel.
+     * <p>
+     * If the pending data ends with a partial record, the rest of the record is read from the channel
+     * (waiting for it even in non-blocking mode), since the kernel can't take over in the middle of a record.
+     * {@link KTlsHandshaker} never hands over a partial record.
+     *
+     * @param pendingNetData encrypted data which was not unwrapped yet, in read mode. Consumed entirely
+     * @throws SSLException if the pending data couldn't be decrypted
+     */
+    public static KTlsSocketChannel upgrade(SocketChannel channel,
+                                            SSLEngine engine,
+                                            ByteBuffer pendingNetData) throws IOException {
+        KTlsSocketChannel kTlsChannel = wrap(channel);
+        ByteBuffer plaintext = drain(channel, engine, pendingNetData);
+        kTlsChannel.enable(engine);
+        kTlsChannel.upgraded(engine, plaintext);
+        return kTlsChannel;
+    }
+
+    /**
+     * Same as {@link #upgrade} but falls back to {@link SslEngineSecureChannel} if kernel TLS is not available.
+     * Unsupported kernels and cipher suites are rejected by {@link KTlsCapabilities} without any system call.
+     * Each step is done by a separate setsockopt(2) rather than {@link #enable} to tell which step failed,
+     * since falling back is possible only until TLS_TX is set.
+     */
+    static SecureChannel upgradeOrFallback(SocketChannel channel,
+                                           SSLEngine engine,
+                                           ByteBuffer pendingNetData) throws IOException {
+        if (!SocketChannelImpl.isInstance(channel) || !SSLEngineImpl.isInstance(engine) ||
+            !KTlsCapabilities.probe().isSupported(engine.getSession().getProtocol(),
+                                                  engine.getSession().getCipherSuite())) {
+            return new SslEngineSecureChannel(channel, engine, pendingNetData, null);
+        }
+        KTlsSocketChannel kTlsChannel = wrap(channel);
+        try {
+            kTlsChannel.setOption(KTlsSocketOptions.TCP_ULP, "tls");
+        } catch (SocketException e) {
+            // The tls module is not loaded
+            return new SslEngineSecureChannel(channel, engine, pendingNetData, null);
+        }
+
+        ByteBuffer plaintext = drain(channel, engine, pendingNetData);
+        try {
+            try (CryptoInfoBuffer buffer = CryptoInfoBuffer.acquire()) {
+                kTlsChannel.setCryptoInfo(TLS_TX, buffer, buffer.putWriteKeys(engine));
+            }
+        } catch (SocketException | UnsupportedOperationException e) {
+            // TLS ULP without crypto info just passes data through, so SSLEngine can take over
+            return new SslEngineSecureChannel(channel, engine, ByteBuffer.allocate(0), plaintext);
+        }
+        // Transmission is already offloaded, so no way to fall back from here
+        try (CryptoInfoBuffer buffer = CryptoInfoBuffer.acquire()) {
+            kTlsChannel.setCryptoInfo(TLS_RX, buffer, buffer.putReadKeys(engine));
+        }
+        kTlsChannel.upgraded(engine, plaintext);
+        return kTlsChannel;
+    }
+
+    /**
+     * Decrypt the pending records by the engine, completing the last partial record by reading from the channel.
+     * @return decrypted data in read mode, or null if nothing
+     */
+    private static ByteBuffer drain(SocketChannel channel,
+                                    SSLEngine engine,
+                                    ByteBuffer pendingNetData) throws IOException {
+        ByteBuffer netData = pendingNetData;
+        int missing = missingRecordBytes(netData);
+        if (missing > 0) {
+            netData = ByteBuffer.allocate(pendingNetData.remaining() + missing);
+            netData.put(pendingNetData);
+            readFully(channel, netData);
+            netData.flip();
+        }
+
+        ByteBuffer appData = null;
+        while (netData.hasRemaining()) {
+            int appBufferSize = engine.getSession().getApplicationBufferSize();
+            if (appData == null) {
+                appData = ByteBuffer.allocate(appBufferSize);
+            }
+            SSLEngineResult result = engine.unwrap(netData, appData);
+            switch (result.getStatus()) {
+                case OK:
+                    break;
+                case BUFFER_OVERFLOW:
+                    ByteBuffer newAppData = ByteBuffer.allocate(appData.capacity() + appBufferSize);
+                    appData.flip();
+                    newAppData.put(appData);
+                    appData = newAppData;
+                    break;
+                default:
+                    throw new SSLException("Failed to unwrap pending data: " + result.getStatus());
+            }
+        }
+        if (appData == null || appData.position() == 0) {
+            return null;
+        }
+        appData.flip();
+        return appData;
+    }
+
+    private void upgraded(SSLEngine engine, ByteBuffer plaintext) {
+        if (CipherSuite.TlsVersion.TLS13.protocol.equals(engine.getSession().getProtocol())) {
+            try {
+                enableKeyUpdate(engine);
+            } catch (UnsupportedOperationException e) {
+                // Traffic secrets are not available in the running JDK. Peer's KeyUpdate will fail reads
+            }
+            skipPostHandshake = engine.getUseClientMode();
+        }
+        pendingPlaintext = plaintext;
+    }
+
+    @Override
+    public boolean isKernelTls() {
+        return true;
+    }
+
+    /**
+     * Always returns true, as written data is handed to the kernel which encrypts it
+     */
+    @Override
+    public boolean flush() {
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes necessary to complete the last TLS record in the buffer,
+     * which is 0 if the buffer ends at a record boundary.
+     * If the header of the last record is incomplete, returns the number of bytes to complete the header.
+     */
+    static int missingRecordBytes(ByteBuffer netData) {
+        int position = netData.position();
+        while (position < netData.limit()) {
+            int available = netData.limit() - position;
+            if (available < TLS_RECORD_HEADER_SIZE) {
+                return TLS_RECORD_HEADER_SIZE - available;
+            }
+            int length = TLS_RECORD_HEADER_SIZE + (netData.getShort(position + 3) & 0xffff);
+            if (length > available) {
+                return length - available;
+            }
+            position += length;
+        }
+        return 0;
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer dst) throws IOException {
+        Selector selector = null;
+        try {
+            while (dst.hasRemaining()) {
+                int n = channel.read(dst);
+                if (n < 0) {
+                    throw new EOFException("Connection closed in the middle of a TLS record");
+                }
+                if (n == 0) {
+                    // Non-blocking channel. Rare enough to use a temporary selector
+                    if (selector == null) {
+                        selector = Selector.open();
+                        channel.register(selector, SelectionKey.OP_READ);
+                    }
+                    selector.select();
+                }
+            }
+        } finally {
+            if (selector != null) {
+                selector.close();
+            }
+        }
+    }
+
+    /**
+     * Returns true if some data which was decrypted on {@link #upgrade} is not read yet.
+     * Since such data is not in the socket, readiness selection doesn't tell it,
+     * so event-driven applications should read it right after upgrading.
+     */
+    public boolean hasPendingPlaintext() {
+        return pendingPlaintext != null;
     }
 
-    public long transferFrom(FileChannel channel, long position, long count) {
-        if (FileChannelImpl.isInstance(channel)) {
-            FileChannelImpl fileChannel = new FileChannelImpl(channel);
-            return sendFile(FDUtil.fdVal(impl.getFD()),
-                            FDUtil.fdVal(fileChannel.fd()),
-                            position,
-                            count);
+    /**
+     * Counters of IO operations on this channel, which are also aggregated into {@link KTlsChannelStats#TOTAL}
+     */
+    public KTlsChannelStats stats() {
+        return stats;
+    }
+
+    /**
+     * Transfers bytes from the given file to this channel by sendfile(2)
+     * so the kernel encrypts the file content without copying it to user space.
+     * <p>
+     * Similar to {@link FileChannel#transferTo}, this method repeats sendfile(2) until
+     * {@code count} bytes are transferred, the end of the file is reached,
+     * or the socket's send buffer becomes full in non-blocking mode.
+     * The position of the given file channel is not modified.
+     * In blocking mode on a virtual thread, the thread is parked instead of blocking the carrier thread
+     * while the send buffer is full.
+     *
+     * @return the number of bytes actually transferred, which may be zero
+     */
+    @Override
+    public long transferFrom(FileChannel channel, long position, long count) throws IOException {
+        if (!FileChannelImpl.isInstance(channel)) {
+            throw new UnsupportedOperationException("Unsupported FileChannel implementation");
+        }
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException(
+                    String.format("Negative position or count: position=%d, count=%d", position, count));
+        }
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+        long size = channel.size();
+        if (position > size) {
+            return 0;
+        }
+        long remaining = Math.min(count, size - position);
+
+        int inFd = FDUtil.fdVal(new FileChannelImpl(channel).fd());
+        long transferred = 0;
+        Lock keyLock = keyUpdateLock.readLock();
+        keyLock.lock();
+        try {
+            boolean parkOnUnavailable = parkOnUnavailable();
+            while (transferred < remaining) {
+                long n = sendFile(fd,
+                                  inFd,
+                                  position + transferred,
+                                  Math.min(remaining - transferred, MAX_SENDFILE_COUNT));
+                stats.recordSendfileCall();
+                if (n == IOS_INTERRUPTED && isOpen()) {
+                    continue;
+                }
+                if (n == IOS_UNAVAILABLE) {
+                    stats.recordUnavailable();
+                    if (parkOnUnavailable) {
+                        parkUntilWritable();
+                        continue;
+                    }
+                }
+                if (n == IOS_UNAVAILABLE || n <= 0) {
+                    // Would block or reached to the end of the file (e.g. truncated concurrently)
+                    break;
+                }
+                transferred += n;
+            }
+        } finally {
+            keyLock.unlock();
         }
-        throw new UnsupportedOperationException("Unsupported FileChannel implementation");
+        stats.recordTransfer(remaining, transferred);
+        onWritten(transferred);
+        return transferred;
+    }
+
+    /**
+     * Transfers bytes from the given pipe or socket to this channel by splice(2)
+     * so that the data is encrypted by the kernel without being copied into the JVM.
+     * <p>
+     * Sockets are spliced through an intermediate pipe owned by this channel.
+     * If this channel would block while the pipe holds some bytes, they are written first on the next call,
+     * and they are counted in the {@code count} of that call.
+     * <p>
+     * This method never waits for the source. In blocking mode on a virtual thread, the thread is parked
+     * while this channel's send buffer is full, and the source is read without blocking the carrier thread.
+     *
+     * @param src either {@link Pipe.SourceChannel} or {@link SocketChannel}
+     * @return the number of bytes written to this channel, which may be zero
+     *         if the source has no data available, reached to EOF, or this channel would block.
+     */
+    public long transferFrom(ReadableByteChannel src, long count) throws IOException {
+        if (!(src instanceof Pipe.SourceChannel || src instanceof SocketChannel) || !SelChImpl.isInstance(src)) {
+            throw new UnsupportedOperationException("Unsupported source channel implementation");
+        }
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative count: " + count);
+        }
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+        int inFd = FDUtil.fdVal(new SelChImpl(src).getFD());
+
+        long transferred = 0;
+        Lock keyLock = keyUpdateLock.readLock();
+        keyLock.lock();
+        spliceLock.lock();
+        try {
+            boolean parkOnUnavailable = parkOnUnavailable();
+            if (parkOnUnavailable && src instanceof SocketChannel && SocketChannelImpl.isInstance(src)) {
+                // Same as the JDK does before reading the source on virtual threads.
+                // Pipes don't need this since splice(2) is called with SPLICE_F_NONBLOCK
+                new SocketChannelImpl((SocketChannel) src).configureSocketNonBlockingIfVirtualThread();
+            }
+            if (src instanceof Pipe.SourceChannel && pipeBuffered == 0 && !parkOnUnavailable) {
+                // EAGAIN of direct splice doesn't tell which side would block,
+                // so go through the intermediate pipe if the thread should park on this channel
+                transferred = spliceToSocket(inFd, count, false);
+            } else {
+                transferred = spliceThroughPipe(inFd, count, parkOnUnavailable);
+            }
+        } finally {
+            spliceLock.unlock();
+            keyLock.unlock();
+            closePipeIfClosed();
+        }
+        stats.recordTransfer(count, transferred);
+        onWritten(transferred);
+        return transferred;
+    }
+
+    /**
+     * Must be called while holding spliceLock
+     */
+    private long spliceThroughPipe(int inFd, long count, boolean parkOnUnavailable) throws IOException {
+        if (pipeReadFd < 0) {
+            long fds = pipe();
+            pipeReadFd = (int) (fds >>> 32);
+            pipeWriteFd = (int) fds;
+        }
+
+        long transferred = 0;
+        while (transferred < count) {
+            if (pipeBuffered == 0) {
+                long n = splice(inFd, pipeWriteFd, Math.min(count - transferred, PIPE_CAPACITY));
+                if (n == IOS_INTERRUPTED && isOpen()) {
+                    continue;
+                }
+                if (n == IOS_UNAVAILABLE || n <= 0) {
+                    // The source has no data available or reached to EOF
+                    break;
+                }
+                pipeBuffered = n;
+            }
+            long n = spliceToSocket(pipeReadFd, pipeBuffered, parkOnUnavailable);
+            pipeBuffered -= n;
+            transferred += n;
+            if (pipeBuffered > 0) {
+                break;
+            }
+        }
+        return transferred;
+    }
+
+    /**
+     * Splice from the pipe to this channel until {@code count} bytes are transferred or either side would block.
+     * If {@code parkOnUnavailable} is true, the pipe must be the intermediate pipe holding {@code count} bytes,
+     * so that EAGAIN always means this channel's send buffer is full.
+     */
+    private long spliceToSocket(int inFd, long count, boolean parkOnUnavailable) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long n = splice(inFd, fd, count - transferred);
+            if (n == IOS_INTERRUPTED && isOpen()) {
+                continue;
+            }
+            if (n == IOS_UNAVAILABLE && inFd == pipeReadFd) {
+                // The intermediate pipe always holds the bytes, so this channel's send buffer is full.
+                // Otherwise, the source pipe may be empty instead
+                stats.recordUnavailable();
+                if (parkOnUnavailable) {
+                    parkUntilWritable();
+                    continue;
+                }
+            }
+            if (n == IOS_UNAVAILABLE || n <= 0) {
+                break;
+            }
+            transferred += n;
+        }
+        return transferred;
+    }
+
+    /**
+     * Creates a {@link FileTransfer} which sends the file to this channel by {@link #transferFrom}
+     * and keeps track of the progress so that it can be resumed on the next write readiness.
+     * No bytes are transferred until {@link FileTransfer#transfer()} is called.
+     */
+    public FileTransfer newFileTransfer(FileChannel channel, long position, long count) {
+        return new FileTransfer(this, channel, position, count);
+    }
+
+    /**
+     * Equivalent of {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+     * which takes the zero-copy path by {@link #transferFrom} if the target is {@link KTlsSocketChannel}.
+     * Otherwise, this just delegates to {@link FileChannel#transferTo}.
+     */
+    public static long transferTo(FileChannel src,
+                                  long position,
+                                  long count,
+                                  WritableByteChannel target) throws IOException {
+        if (target instanceof KTlsSocketChannel && FileChannelImpl.isInstance(src)) {
+            return ((KTlsSocketChannel) target).transferFrom(src, position, count);
+        }
+        return src.transferTo(position, count, target);
+    }
+
+    /**
+     * Enable writing direct buffers by writev(2) on the socket directly.
+     * <p>
+     * Since the kernel does TLS framing, the application data doesn't need any transformation in user space.
+     * In this mode, writing direct buffers doesn't allocate anything per call,
+     * while the underlying {@link SocketChannel} may allocate temporary buffers.
+     * Heap buffers are still written through the underlying {@link SocketChannel}.
+     * <p>
+     * Writes in this mode must not be interleaved with writes in default mode from other threads.
+     */
+    public void setNativeWriteEnabled(boolean enabled) {
+        nativeWriteEnabled = enabled;
     }
 
     @Override
     public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
-        return delegate.write(srcs, offset, length);
+        long requested = 0;
+        for (int i = offset; i < offset + length; i++) {
+            requested += srcs[i].remaining();
+        }
+        long n;
+        Lock keyLock = keyUpdateLock.readLock();
+        keyLock.lock();
+        try {
+            if (nativeWriteEnabled && allDirect(srcs, offset, length)) {
+                n = writeNative(srcs, offset, length);
+            } else {
+                n = delegate.write(srcs, offset, length);
+                if (n == 0 && requested > 0) {
+                    // The delegate returns 0 only when the socket is not ready
+                    stats.recordUnavailable();
+                }
+            }
+        } finally {
+            keyLock.unlock();
+        }
+        stats.recordWrite(requested, n);
+        onWritten(n);
+        return n;
     }
 
     @Override
     public long write(ByteBuffer[] srcs) throws IOException {
-        return delegate.write(srcs);
+        return write(srcs, 0, srcs.length);
     }
 
     @Override
@@ -77,21 +598,65 @@ public class KTlsSocketChannel implements ByteChannel,
         return delegate.getLocalAddress();
     }
 
+    /**
+     * Install TLS ULP and enable kernel TLS for both directions at once.
+     * This is equivalent to setting {@link KTlsSocketOptions#TCP_ULP}, {@link KTlsSocketOptions#TLS_TX}
+     * and {@link KTlsSocketOptions#TLS_RX} in order, but done in a single native call,
+     * so it's cheaper when many connections are set up.
+     * Like setting them as options, the crypto infos are passed to the native library by an off-heap buffer
+     * which is wiped right after the system calls.
+     * If any step fails, single {@link java.net.SocketException} which tells the failed step is thrown.
+     * @param tx crypto info for transmission
+     * @param rx crypto info for reception. {@code null} to enable only transmission
+     */
+    public void enable(TlsCryptoInfo tx, TlsCryptoInfo rx) throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+        try (CryptoInfoBuffer buffer = CryptoInfoBuffer.acquire()) {
+            CipherType txType = buffer.put(tx);
+            CipherType rxType = rx == null ? null : buffer.put(rx);
+            enable(fd, buffer.address(), txType.id, rxType == null ? 0 : rxType.id);
+        }
+    }
+
+    /**
+     * Same as {@code enable(TlsCryptoInfo.from(engine), TlsCryptoInfo.forRead(engine))} but the keys are
+     * copied from the engine to off-heap directly, so that no key material is left on heap.
+     */
+    private void enable(SSLEngine engine) throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+        try (CryptoInfoBuffer buffer = CryptoInfoBuffer.acquire()) {
+            CipherType txType = buffer.putWriteKeys(engine);
+            CipherType rxType = buffer.putReadKeys(engine);
+            enable(fd, buffer.address(), txType.id, rxType.id);
+        }
+    }
+
+    /**
+     * Set the crypto info which is put to the buffer as the only struct
+     */
+    private void setCryptoInfo(int optName, CryptoInfoBuffer buffer, CipherType type) throws IOException {
+        setCryptoInfo(fd, optName, buffer.address(), type.id);
+    }
+
     @Override
     public <T> KTlsSocketChannel setOption(SocketOption<T> name, T value) throws IOException {
         if (name == KTlsSocketOptions.TCP_ULP) {
-            setTcpUlp(FDUtil.fdVal(impl.getFD()), (String) value);
+            setTcpUlp(fd, (String) value);
+            return this;
+        }
+        if (name == KTlsSocketOptions.TLS_TX || name == KTlsSocketOptions.TLS_RX) {
+            try (CryptoInfoBuffer buffer = CryptoInfoBuffer.acquire()) {
+                CipherType type = buffer.put((TlsCryptoInfo) value);
+                setCryptoInfo(name == KTlsSocketOptions.TLS_TX ? TLS_TX : TLS_RX, buffer, type);
+            }
             return this;
         }
-        if (name == KTlsSocketOptions.TLS_TX) {
-            TlsCryptoInfo info = (TlsCryptoInfo) value;
-            setTlsTx(FDUtil.fdVal(impl.getFD()),
-                     info.protocol(),
-                     info.cipherSuite(),
-                     info.iv(),
-                     info.key(),
-                     info.salt(),
-                     info.recSeq());
+        if (name == KTlsSocketOptions.TLS_TX_ZEROCOPY_RO) {
+            setTlsIntOption(fd, TLS_TX_ZEROCOPY_RO, (Boolean) value ? 1 : 0);
             return this;
         }
         delegate.setOption(name, value);
@@ -108,24 +673,538 @@ public class KTlsSocketChannel implements ByteChannel,
         return delegate.supportedOptions();
     }
 
+    /**
+     * Send the data as a TLS record of the given content type by sendmsg(2) with TLS_SET_RECORD_TYPE,
+     * so that records other than application data (e.g. alerts, or TLS 1.3 post-handshake messages)
+     * are encrypted by the kernel with the current keys. Requires TLS_TX to be enabled.
+     * <p>
+     * In blocking mode on a virtual thread, the thread is parked while the send buffer is full.
+     *
+     * @param contentType one of {@link TlsContentType#value()}
+     * @param src the payload of the record, which must fit in a single record
+     * @return the number of bytes written, which is zero if the send buffer is full in non-blocking mode
+     */
+    public int sendRecord(byte contentType, ByteBuffer src) throws IOException {
+        if (src.remaining() > MAX_RECORD_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Too large record: " + src.remaining());
+        }
+        Lock keyLock = keyUpdateLock.readLock();
+        keyLock.lock();
+        nativeWriteLock.lock();
+        try {
+            if (!isOpen()) {
+                throw new ClosedChannelException();
+            }
+            if (!src.hasRemaining()) {
+                return 0;
+            }
+            ByteBuffer buffer = src;
+            if (!src.isDirect()) {
+                buffer = BufferPool.SHARED.acquire(src.remaining());
+                buffer.put(src.duplicate());
+                buffer.flip();
+            }
+            try {
+                boolean parkOnUnavailable = parkOnUnavailable();
+                long n;
+                while (true) {
+                    n = sendRecord(fd,
+                                   contentType,
+                                   BufferUtil.address(buffer) + buffer.position(),
+                                   buffer.remaining());
+                    if (n == IOS_INTERRUPTED && isOpen()) {
+                        continue;
+                    }
+                    if (n == IOS_UNAVAILABLE) {
+                        stats.recordUnavailable();
+                        if (parkOnUnavailable) {
+                            parkUntilWritable();
+                            continue;
+                        }
+                    }
+                    break;
+                }
+                if (n < 0) {
+                    return 0;
+                }
+                src.position(src.position() + (int) n);
+                return (int) n;
+            } finally {
+                if (buffer != src) {
+                    BufferPool.SHARED.release(buffer);
+                }
+            }
+        } finally {
+            nativeWriteLock.unlock();
+            keyLock.unlock();
+        }
+    }
+
+    /**
+     * Send close_notify alert, which tells the peer that no more data will be sent on this channel.
+     * The channel is not closed by this method.
+     *
+     * @return false if the alert couldn't be sent since the send buffer is full in non-blocking mode
+     */
+    public boolean sendCloseNotify() throws IOException {
+        return sendRecord(TlsContentType.ALERT.value(), ByteBuffer.wrap(CLOSE_NOTIFY)) > 0;
+    }
+
+    /**
+     * Enable TLS 1.3 key update by capturing the current traffic secrets from the engine,
+     * which must be called right after enabling kernel TLS by the engine's keys.
+     * {@link #upgrade} calls this for TLS 1.3 connections.
+     * <p>
+     * Once enabled, KeyUpdate messages from the peer are processed by {@link #readRecord}
+     * which rotates the read key (and the write key if requested by the peer) in place.
+     * This requires the kernel to support rekeying (Linux 6.14 or later).
+     *
+     * @throws UnsupportedOperationException if the session is not TLS 1.3 or the secrets are not available
+     */
+    public void enableKeyUpdate(SSLEngine engine) {
+        keySchedule = Tls13KeySchedule.from(engine);
+    }
+
+    /**
+     * Send KeyUpdate automatically once the given number of bytes are written with the current key,
+     * so that long-lived connections don't reach AEAD usage limits.
+     * Automatic key update happens in the writing thread right after the write which exceeds the threshold.
+     *
+     * @param bytes the threshold in bytes, or 0 to disable automatic key update
+     */
+    public void setKeyUpdateThreshold(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Negative threshold: " + bytes);
+        }
+        keyUpdateThreshold = bytes;
+    }
+
+    /**
+     * Send KeyUpdate, then switch the kernel to the next write key.
+     * Writes from other threads wait until the key is switched.
+     * Must not be called while writing to this channel in the same thread.
+     *
+     * @param requestPeerUpdate whether to request the peer to update its write key as well
+     * @return false if KeyUpdate couldn't be sent since the send buffer is full in non-blocking mode,
+     *         in which case the key is not updated
+     * @throws IllegalStateException if key update is not enabled
+     */
+    public boolean updateKeys(boolean requestPeerUpdate) throws IOException {
+        Tls13KeySchedule schedule = keySchedule;
+        if (schedule == null) {
+            throw new IllegalStateException("Key update is not enabled");
+        }
+        // Hold off other writes until the kernel switches to the next key,
+        // otherwise the peer fails to decrypt records sent in between by the old key
+        Lock keyLock = keyUpdateLock.writeLock();
+        keyLock.lock();
+        try {
+            ByteBuffer keyUpdate = ByteBuffer.wrap(new byte[] {
+                    KEY_UPDATE, 0, 0, 1, (byte) (requestPeerUpdate ? 1 : 0)
+            });
+            if (sendRecord(TlsContentType.HANDSHAKE.value(), keyUpdate) == 0) {
+                return false;
+            }
+            try (CryptoInfoBuffer buffer = CryptoInfoBuffer.acquire()) {
+                setCryptoInfo(TLS_TX, buffer, schedule.nextWriteInfo(buffer));
+            }
+            bytesSinceKeyUpdate.set(0);
+            keyUpdatePending = false;
+            return true;
+        } finally {
+            keyLock.unlock();
+        }
+    }
+
+    private void onWritten(long n) throws IOException {
+        if (keyUpdatePending) {
+            updateKeys(false);
+            return;
+        }
+        long threshold = keyUpdateThreshold;
+        if (threshold > 0 && n > 0 && bytesSinceKeyUpdate.addAndGet(n) >= threshold) {
+            updateKeys(false);
+        }
+    }
+
+    /**
+     * Rotate the read key if the handshake messages in {@code dst} from {@code start} contain KeyUpdate.
+     * Must be called while holding readLock.
+     * @return true if KeyUpdate was found
+     */
+    private boolean handleKeyUpdate(ByteBuffer dst, int start) throws IOException {
+        int position = start;
+        while (position + 4 <= dst.position()) {
+            byte type = dst.get(position);
+            int length = ((dst.get(position + 1) & 0xff) << 16) |
+                         ((dst.get(position + 2) & 0xff) << 8) |
+                         (dst.get(position + 3) & 0xff);
+            if (type == KEY_UPDATE && length == 1 && position + KEY_UPDATE_MESSAGE_SIZE <= dst.position()) {
+                // KeyUpdate must be the last message of the record, and the kernel pauses decryption
+                // until the next key is set
+                try (CryptoInfoBuffer buffer = CryptoInfoBuffer.acquire()) {
+                    setCryptoInfo(TLS_RX, buffer, keySchedule.nextReadInfo(buffer));
+                }
+                if (dst.get(position + 4) == 1 && !updateKeys(false)) {
+                    // update_requested. Retried on the next write
+                    keyUpdatePending = true;
+                }
+                return true;
+            }
+            position += 4 + length;
+        }
+        return false;
+    }
+
+    /**
+     * Read the payload of TLS records by recvmsg(2) along with their content type given by TLS_GET_RECORD_TYPE.
+     * Requires TLS_RX to be enabled.
+     * <p>
+     * Plain {@link #read(ByteBuffer)} fails with EIO once the kernel receives a record other than
+     * application data, while this method can receive alerts (e.g. close_notify) and
+     * post-handshake messages (e.g. TLS 1.3 NewSessionTicket or KeyUpdate) which the caller should handle.
+     * Records of different content types are never mixed in single call.
+     * If key update is enabled (see {@link #enableKeyUpdate}), KeyUpdate messages are processed by this method
+     * and not returned to the caller.
+     * <p>
+     * In blocking mode on a virtual thread, the thread is parked until data arrives.
+     *
+     * @return the content type of the data read into {@code dst},
+     *         or null if no data is available in non-blocking mode
+     * @throws EOFException if the peer closed the connection
+     */
+    public TlsContentType readRecord(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            throw new IllegalArgumentException("No space remaining in dst");
+        }
+        readLock.lock();
+        try {
+            if (pendingPlaintext != null) {
+                readPendingPlaintext(dst);
+                return TlsContentType.APPLICATION_DATA;
+            }
+            while (true) {
+                int start = dst.position();
+                TlsContentType contentType = receiveRecord(dst);
+                if (contentType != TlsContentType.HANDSHAKE || keySchedule == null) {
+                    return contentType;
+                }
+                if (!handleKeyUpdate(dst, start)) {
+                    return contentType;
+                }
+                if (dst.position() - start == KEY_UPDATE_MESSAGE_SIZE) {
+                    // The record consisted only of KeyUpdate, which the caller doesn't need to know
+                    dst.position(start);
+                    continue;
+                }
+                return contentType;
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Must be called while holding readLock
+     */
+    private TlsContentType receiveRecord(ByteBuffer dst) throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+        ByteBuffer buffer = dst.isDirect() ? dst : BufferPool.SHARED.acquire(dst.remaining());
+        try {
+            int length = dst.remaining();
+            boolean parkOnUnavailable = parkOnUnavailable();
+            long result;
+            while (true) {
+                result = recvRecord(fd, BufferUtil.address(buffer) + buffer.position(), length);
+                if (result == IOS_INTERRUPTED && isOpen()) {
+                    continue;
+                }
+                if (result == IOS_UNAVAILABLE && parkOnUnavailable) {
+                    parkUntilReadable();
+                    continue;
+                }
+                break;
+            }
+            if (result < 0) {
+                return null;
+            }
+            // The native library packs the content type into upper 32 bits
+            int n = (int) result;
+            if (n == 0) {
+                throw new EOFException("Connection closed by peer");
+            }
+            TlsContentType contentType = TlsContentType.of((int) (result >>> 32));
+            if (buffer == dst) {
+                dst.position(dst.position() + n);
+            } else {
+                buffer.limit(n);
+                dst.put(buffer);
+            }
+            return contentType;
+        } finally {
+            if (buffer != dst) {
+                BufferPool.SHARED.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Read application data by {@link #readRecord}, discarding post-handshake messages.
+     * close_notify is reported as EOF, and other alerts fail the read.
+     */
+    private int readApplicationData(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        readLock.lock();
+        try {
+            while (true) {
+                int start = dst.position();
+                TlsContentType contentType;
+                try {
+                    contentType = readRecord(dst);
+                } catch (EOFException e) {
+                    return -1;
+                }
+                if (contentType == null) {
+                    return 0;
+                }
+                switch (contentType) {
+                    case APPLICATION_DATA:
+                        return dst.position() - start;
+                    case ALERT: {
+                        // level(1) + description(1)
+                        int description = dst.position() - start >= 2 ? dst.get(start + 1) : -1;
+                        dst.position(start);
+                        if (description == CLOSE_NOTIFY[1]) {
+                            return -1;
+                        }
+                        throw new SSLException("Received alert: " + description);
+                    }
+                    default:
+                        // e.g. NewSessionTicket, which is useless since the session can't be resumed by JSSE
+                        dst.position(start);
+                        break;
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
     @Override
     public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        if (skipPostHandshake) {
+            for (int i = offset; i < offset + length; i++) {
+                if (dsts[i].hasRemaining()) {
+                    return readApplicationData(dsts[i]);
+                }
+            }
+            return 0;
+        }
+        if (pendingPlaintext != null) {
+            readLock.lock();
+            try {
+                if (pendingPlaintext != null) {
+                    long n = 0;
+                    for (int i = offset; i < offset + length; i++) {
+                        n += readPendingPlaintext(dsts[i]);
+                    }
+                    return n;
+                }
+            } finally {
+                readLock.unlock();
+            }
+        }
         return delegate.read(dsts, offset, length);
     }
 
     @Override
     public long read(ByteBuffer[] dsts) throws IOException {
-        return delegate.read(dsts);
+        return read(dsts, 0, dsts.length);
     }
 
     @Override
     public int read(ByteBuffer dst) throws IOException {
+        if (skipPostHandshake) {
+            return readApplicationData(dst);
+        }
+        if (pendingPlaintext != null) {
+            readLock.lock();
+            try {
+                if (pendingPlaintext != null) {
+                    return readPendingPlaintext(dst);
+                }
+            } finally {
+                readLock.unlock();
+            }
+        }
         return delegate.read(dst);
     }
 
+    /**
+     * Must be called while holding readLock
+     */
+    private int readPendingPlaintext(ByteBuffer dst) {
+        ByteBuffer src = pendingPlaintext;
+        if (src == null) {
+            return 0;
+        }
+        int n = Math.min(src.remaining(), dst.remaining());
+        ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + n);
+        dst.put(slice);
+        src.position(src.position() + n);
+        if (!src.hasRemaining()) {
+            pendingPlaintext = null;
+        }
+        return n;
+    }
+
     @Override
     public int write(ByteBuffer src) throws IOException {
-        return delegate.write(src);
+        int requested = src.remaining();
+        int n;
+        Lock keyLock = keyUpdateLock.readLock();
+        keyLock.lock();
+        try {
+            if (nativeWriteEnabled && src.isDirect()) {
+                n = writeNative(src);
+            } else {
+                n = delegate.write(src);
+                if (n == 0 && requested > 0) {
+                    // The delegate returns 0 only when the socket is not ready
+                    stats.recordUnavailable();
+                }
+            }
+        } finally {
+            keyLock.unlock();
+        }
+        stats.recordWrite(requested, n);
+        onWritten(n);
+        return n;
+    }
+
+    private int writeNative(ByteBuffer src) throws IOException {
+        nativeWriteLock.lock();
+        try {
+            ensureIovecs();
+            if (!src.hasRemaining()) {
+                return 0;
+            }
+            putIovec(0, src);
+            int n = (int) doWritev(1);
+            src.position(src.position() + n);
+            return n;
+        } finally {
+            nativeWriteLock.unlock();
+        }
+    }
+
+    private long writeNative(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        nativeWriteLock.lock();
+        try {
+            ensureIovecs();
+            int iovCount = 0;
+            for (int i = offset; i < offset + length && iovCount < MAX_IOV_COUNT; i++) {
+                if (srcs[i].hasRemaining()) {
+                    putIovec(iovCount++, srcs[i]);
+                }
+            }
+            if (iovCount == 0) {
+                return 0;
+            }
+            long n = doWritev(iovCount);
+
+            // Advance buffer positions as the written bytes
+            long left = n;
+            for (int i = offset; i < offset + length && left > 0; i++) {
+                ByteBuffer src = srcs[i];
+                int consumed = (int) Math.min(src.remaining(), left);
+                src.position(src.position() + consumed);
+                left -= consumed;
+            }
+            return n;
+        } finally {
+            nativeWriteLock.unlock();
+        }
+    }
+
+    private void ensureIovecs() throws ClosedChannelException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+        if (iovecs == null) {
+            iovecs = ByteBuffer.allocateDirect(MAX_IOV_COUNT * IOV_SIZE).order(ByteOrder.nativeOrder());
+            iovecsAddress = BufferUtil.address(iovecs);
+        }
+    }
+
+    private void putIovec(int index, ByteBuffer src) {
+        iovecs.putLong(index * IOV_SIZE, BufferUtil.address(src) + src.position());
+        iovecs.putLong(index * IOV_SIZE + 8, src.remaining());
+    }
+
+    private long doWritev(int iovCount) throws IOException {
+        boolean parkOnUnavailable = parkOnUnavailable();
+        long n;
+        while (true) {
+            n = writev(fd, iovecsAddress, iovCount);
+            if (n == IOS_INTERRUPTED && isOpen()) {
+                continue;
+            }
+            if (n == IOS_UNAVAILABLE) {
+                stats.recordUnavailable();
+                if (parkOnUnavailable) {
+                    parkUntilWritable();
+                    continue;
+                }
+            }
+            break;
+        }
+        if (n == IOS_UNAVAILABLE || n < 0) {
+            return 0;
+        }
+        return n;
+    }
+
+    /**
+     * On virtual threads, the JDK switches the socket of a blocking channel to non-blocking mode
+     * and parks the thread until the socket becomes ready, instead of blocking the carrier thread in syscalls.
+     * Native calls follow the same way.
+     * @return true if the caller should park and retry when the socket is not ready
+     */
+    private boolean parkOnUnavailable() throws IOException {
+        if (delegate.isBlocking() && VirtualThreads.isVirtual(Thread.currentThread())) {
+            impl.configureSocketNonBlockingIfVirtualThread();
+            return true;
+        }
+        return false;
+    }
+
+    private void parkUntilWritable() throws IOException {
+        new SelChImpl(delegate).park(Net.POLLOUT);
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private void parkUntilReadable() throws IOException {
+        new SelChImpl(delegate).park(Net.POLLIN);
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private static boolean allDirect(ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (!buffers[i].isDirect()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
@@ -136,5 +1215,25 @@ public class KTlsSocketChannel implements ByteChannel,
     @Override
     public void close() throws IOException {
         delegate.close();
+        closePipeIfClosed();
+    }
+
+    /**
+     * Close the intermediate pipe once the channel is closed.
+     * If transferFrom is in progress (possibly parked), the pipe is closed by that thread when it finishes instead.
+     */
+    private void closePipeIfClosed() {
+        if (isOpen() || !spliceLock.tryLock()) {
+            return;
+        }
+        try {
+            if (pipeReadFd >= 0) {
+                closeFd(pipeReadFd);
+                closeFd(pipeWriteFd);
+                pipeReadFd = pipeWriteFd = -1;
+            }
+        } finally {
+            spliceLock.unlock();
+        }
     }
 }
@@ -0,0 +1,182 @@
+package com.mayreh.jktls;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * {@link SSLSocketFactory} which creates {@link KTlsSocket}s, so that existing clients can utilize kernel TLS
+ * by swapping the socket factory.
+ * <p>
+ * Enabled cipher suites are limited to the ones supported by the kernel (see {@link KTlsCapabilities}).
+ * If the kernel doesn't support any of them, sockets are created by {@link SSLContext#getSocketFactory()}
+ * which does all crypto in user space.
+ * <p>
+ * Layered sockets (i.e. {@link #createSocket(Socket, String, int, boolean)}) are supported only if the given
+ * socket is backed by {@link SocketChannel}, which {@link #plainSocketFactory()} creates.
+ * Otherwise they are created by JSSE as well.
+ */
+public class KTlsSocketFactory extends SSLSocketFactory {
+    private final SSLContext sslContext;
+    private final SSLSocketFactory fallback;
+    private final KTlsConnector connector;
+    // Null if the kernel supports none of the enabled cipher suites
+    private final String[] cipherSuites;
+
+    public KTlsSocketFactory(SSLContext sslContext) {
+        this.sslContext = sslContext;
+        fallback = sslContext.getSocketFactory();
+        connector = new KTlsConnector(sslContext);
+
+        KTlsCapabilities capabilities = KTlsCapabilities.probe();
+        String[] suites = Arrays.stream(sslContext.getDefaultSSLParameters().getCipherSuites())
+                                .filter(capabilities::isSupported)
+                                .toArray(String[]::new);
+        cipherSuites = suites.length > 0 ? suites : null;
+    }
+
+    /**
+     * Returns a {@link SocketFactory} which creates plain sockets backed by {@link SocketChannel},
+     * on which this factory can layer {@link KTlsSocket}s
+     * (e.g. as the plain socket factory of HTTP clients which connect first and then layer TLS).
+     */
+    public static SocketFactory plainSocketFactory() {
+        return ChannelSocketFactory.INSTANCE;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return cipherSuites != null ? cipherSuites.clone() : fallback.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return fallback.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        if (cipherSuites == null) {
+            return fallback.createSocket(host, port);
+        }
+        return connect(new InetSocketAddress(host, port), null, host, port);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        if (cipherSuites == null) {
+            return fallback.createSocket(host, port, localHost, localPort);
+        }
+        return connect(new InetSocketAddress(host, port), new InetSocketAddress(localHost, localPort), host, port);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        if (cipherSuites == null) {
+            return fallback.createSocket(host, port);
+        }
+        return connect(new InetSocketAddress(host, port), null, null, port);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+        if (cipherSuites == null) {
+            return fallback.createSocket(address, port, localAddress, localPort);
+        }
+        return connect(new InetSocketAddress(address, port),
+                       new InetSocketAddress(localAddress, localPort),
+                       null,
+                       port);
+    }
+
+    /**
+     * The socket is closed when the returned socket is closed regardless of {@code autoClose},
+     * since close_notify and the connection can't be closed separately on kernel TLS.
+     */
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+        SocketChannel channel = s.getChannel();
+        if (cipherSuites == null || channel == null) {
+            return fallback.createSocket(s, host, port, autoClose);
+        }
+        return new KTlsSocket(channel, newEngine(host, port), connector);
+    }
+
+    private KTlsSocket connect(InetSocketAddress remote,
+                               InetSocketAddress local,
+                               String host,
+                               int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            if (local != null) {
+                channel.bind(local);
+            }
+            channel.connect(remote);
+            return new KTlsSocket(channel, newEngine(host, port), connector);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private SSLEngine newEngine(String host, int port) {
+        SSLEngine engine = host != null ? sslContext.createSSLEngine(host, port) : sslContext.createSSLEngine();
+        engine.setUseClientMode(true);
+        engine.setEnabledCipherSuites(cipherSuites);
+        return engine;
+    }
+
+    private static class ChannelSocketFactory extends SocketFactory {
+        static final ChannelSocketFactory INSTANCE = new ChannelSocketFactory();
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return SocketChannel.open().socket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return connect(new InetSocketAddress(host, port), null);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            return connect(new InetSocketAddress(host, port), new InetSocketAddress(localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return connect(new InetSocketAddress(host, port), null);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return connect(new InetSocketAddress(address, port), new InetSocketAddress(localAddress, localPort));
+        }
+
+        private Socket connect(InetSocketAddress remote, InetSocketAddress local) throws IOException {
+            Socket socket = createSocket();
+            try {
+                if (local != null) {
+                    socket.bind(local);
+                }
+                socket.connect(remote);
+                return socket;
+            } catch (IOException | RuntimeException e) {
+                socket.close();
+                throw e;
+            }
+        }
+    }
+}
@@ -23,6 +23,20 @@ public final class KTlsSocketOptions {
     public static final SocketOption<TlsCryptoInfo> TLS_TX =
             new SockOption<>("TLS_TX", TlsCryptoInfo.class);
 
+    /**
+     * Enable decryption of application data received over this socket.
+     */
+    public static final SocketOption<TlsCryptoInfo> TLS_RX =
+            new SockOption<>("TLS_RX", TlsCryptoInfo.class);
+
+    /**
+     * Let the kernel skip copying file pages on sendfile(2) with TLS device offload.
+     * The file must not be modified during the transfer, otherwise the record may be sent with invalid tag.
+     * Available since Linux 5.19 and takes effect only on NICs supporting TLS offload.
+     */
+    public static final SocketOption<Boolean> TLS_TX_ZEROCOPY_RO =
+            new SockOption<>("TLS_TX_ZEROCOPY_RO", Boolean.class);
+
     @Value
     @Accessors(fluent = true)
     private static class SockOption<T> implements SocketOption<T> {
@@ -0,0 +1,150 @@
+package com.mayreh.jktls;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Statistics of TLS offload, which consist of the kernel's counters in /proc/net/tls_stat
+ * and the counters of {@link KTlsSocketChannel}s in the JVM ({@link KTlsChannelStats#TOTAL})
+ * and their handshakes ({@link KTlsHandshakeStats#TOTAL}).
+ * <p>
+ * The kernel's counters are system-wide (per network namespace) and tell, for example,
+ * whether connections are offloaded to the device or fall back to software ({@code TlsCurrTxSw}),
+ * and how many records failed to be decrypted ({@code TlsDecryptError}).
+ */
+public class KTlsStats implements KTlsStatsMXBean {
+    public static final String OBJECT_NAME = "com.mayreh.jktls:type=KTlsStats";
+
+    // Well-known counter names in /proc/net/tls_stat
+    public static final String TLS_CURR_TX_SW = "TlsCurrTxSw";
+    public static final String TLS_CURR_RX_SW = "TlsCurrRxSw";
+    public static final String TLS_CURR_TX_DEVICE = "TlsCurrTxDevice";
+    public static final String TLS_CURR_RX_DEVICE = "TlsCurrRxDevice";
+    public static final String TLS_TX_SW = "TlsTxSw";
+    public static final String TLS_RX_SW = "TlsRxSw";
+    public static final String TLS_TX_DEVICE = "TlsTxDevice";
+    public static final String TLS_RX_DEVICE = "TlsRxDevice";
+    public static final String TLS_DECRYPT_ERROR = "TlsDecryptError";
+    public static final String TLS_RX_DEVICE_RESYNC = "TlsRxDeviceResync";
+    public static final String TLS_DECRYPT_RETRY = "TlsDecryptRetry";
+    public static final String TLS_RX_NO_PAD_VIOLATION = "TlsRxNoPadViolation";
+
+    private static final Path TLS_STAT_PATH = Paths.get("/proc/net/tls_stat");
+
+    private final Path path;
+
+    public KTlsStats() {
+        this(TLS_STAT_PATH);
+    }
+
+    KTlsStats(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Read the kernel's counters in /proc/net/tls_stat
+     * @return counters keyed by their names. Empty if the tls module is not loaded
+     */
+    public static Map<String, Long> kernelStats() {
+        return new KTlsStats().getKernelStats();
+    }
+
+    /**
+     * Register the MBean to the platform MBean server as {@link #OBJECT_NAME} unless registered yet.
+     */
+    public static void registerMBean() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(new KTlsStats(), new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // Already registered
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register MBean", e);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getKernelStats() {
+        try {
+            return parse(Files.readAllLines(path, StandardCharsets.US_ASCII));
+        } catch (NoSuchFileException e) {
+            return Collections.emptyMap();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return KTlsChannelStats.TOTAL.bytesWritten();
+    }
+
+    @Override
+    public long getBytesTransferred() {
+        return KTlsChannelStats.TOTAL.bytesTransferred();
+    }
+
+    @Override
+    public long getSendfileCalls() {
+        return KTlsChannelStats.TOTAL.sendfileCalls();
+    }
+
+    @Override
+    public long getPartialSends() {
+        return KTlsChannelStats.TOTAL.partialSends();
+    }
+
+    @Override
+    public long getUnavailable() {
+        return KTlsChannelStats.TOTAL.unavailable();
+    }
+
+    @Override
+    public long getFullHandshakes() {
+        return KTlsHandshakeStats.TOTAL.fullHandshakes();
+    }
+
+    @Override
+    public long getResumedHandshakes() {
+        return KTlsHandshakeStats.TOTAL.resumedHandshakes();
+    }
+
+    @Override
+    public double getResumptionRate() {
+        return KTlsHandshakeStats.TOTAL.resumptionRate();
+    }
+
+    /**
+     * Parse lines of "name value" separated by whitespaces. Malformed lines are skipped
+     */
+    static Map<String, Long> parse(List<String> lines) {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        for (String line : lines) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length != 2) {
+                continue;
+            }
+            try {
+                stats.put(fields[0], Long.parseLong(fields[1]));
+            } catch (NumberFormatException e) {
+                // Skip
+            }
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,29 @@
+package com.mayreh.jktls;
+
+import java.util.Map;
+
+/**
+ * JMX interface of {@link KTlsStats}, which is registered as {@link KTlsStats#OBJECT_NAME}.
+ */
+public interface KTlsStatsMXBean {
+    /**
+     * Counters in /proc/net/tls_stat. Empty if the tls module is not loaded
+     */
+    Map<String, Long> getKernelStats();
+
+    long getBytesWritten();
+
+    long getBytesTransferred();
+
+    long getSendfileCalls();
+
+    long getPartialSends();
+
+    long getUnavailable();
+
+    long getFullHandshakes();
+
+    long getResumedHandshakes();
+
+    double getResumptionRate();
+}
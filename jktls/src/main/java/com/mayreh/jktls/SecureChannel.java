@@ -0,0 +1,66 @@
+package com.mayreh.jktls;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+
+/**
+ * A channel which reads and writes plaintext over an established TLS connection,
+ * either by kernel TLS ({@link KTlsSocketChannel}) or by {@link SSLEngine} in user space.
+ * <p>
+ * Read and write methods follow the semantics of {@link SocketChannel} in both implementations,
+ * so that applications can be written once regardless of whether kernel TLS is available on the host.
+ */
+public interface SecureChannel extends ByteChannel, ScatteringByteChannel, GatheringByteChannel {
+    /**
+     * Switch the channel, on which the TLS handshake was done by the engine, to kernel TLS if possible.
+     * Otherwise (e.g. the tls module is not loaded, or the cipher suite is not supported by the kernel),
+     * returns a channel which encrypts and decrypts data by the engine.
+     * <p>
+     * Encrypted data which was read along with the handshake messages is handled
+     * in the same way as {@link KTlsSocketChannel#upgrade}.
+     *
+     * @param pendingNetData encrypted data which was not unwrapped yet, in read mode. Consumed entirely
+     */
+    static SecureChannel open(SocketChannel channel,
+                              SSLEngine engine,
+                              ByteBuffer pendingNetData) throws IOException {
+        return KTlsSocketChannel.upgradeOrFallback(channel, engine, pendingNetData);
+    }
+
+    /**
+     * Transfers bytes from the given file to this channel.
+     * Kernel TLS sends the file by sendfile(2) without copying it into the JVM,
+     * while the fallback reads the file into a buffer and encrypts it.
+     * <p>
+     * Similar to {@link FileChannel#transferTo}, fewer bytes than requested may be transferred
+     * on a non-blocking channel. The position of the given file channel is not modified.
+     *
+     * @return the number of bytes actually transferred, which may be zero
+     */
+    long transferFrom(FileChannel channel, long position, long count) throws IOException;
+
+    /**
+     * Writes encrypted data which was accepted by previous writes but not written to the underlying channel yet.
+     * <p>
+     * Write methods return the number of plaintext bytes accepted, which may be encrypted but not sent yet
+     * on a non-blocking channel when TLS is done in user space. Callers of a non-blocking channel must keep
+     * {@link java.nio.channels.SelectionKey#OP_WRITE} interest and call this method until it returns true,
+     * otherwise the data may never be sent (e.g. after writing the last response).
+     * Kernel TLS has no such data, so it always returns true.
+     *
+     * @return true if no data is pending
+     */
+    boolean flush() throws IOException;
+
+    /**
+     * Returns true if TLS is offloaded to the kernel
+     */
+    boolean isKernelTls();
+}
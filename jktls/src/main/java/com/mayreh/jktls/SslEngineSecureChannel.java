@@ -0,0 +1,350 @@
+package com.mayreh.jktls;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * {@link SecureChannel} which encrypts and decrypts data by {@link SSLEngine} in user space,
+ * used when kernel TLS is not available.
+ * <p>
+ * Buffers are allocated once per channel and reused.
+ * On a non-blocking channel, write methods return the bytes consumed by the engine, and the last record
+ * which couldn't be written entirely is kept until the next write or {@link #flush()}.
+ */
+final class SslEngineSecureChannel implements SecureChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    // Max plaintext size of a TLS record
+    private static final int FILE_CHUNK_SIZE = 16384;
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    // The underlying channel may park virtual threads while holding the locks, which monitors would pin
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Encrypted data which was read from the channel but not unwrapped yet. Always in write mode
+    private ByteBuffer netIn;
+    // Decrypted data which is not consumed yet. Always in read mode
+    private ByteBuffer appIn;
+    // Encrypted data which is not written to the channel yet. Always in read mode
+    private ByteBuffer netOut;
+
+    /**
+     * @param pendingNetData encrypted data which was read along with the handshake messages, in read mode
+     * @param pendingPlaintext data which was already decrypted, in read mode. Nullable
+     */
+    SslEngineSecureChannel(SocketChannel channel,
+                           SSLEngine engine,
+                           ByteBuffer pendingNetData,
+                           ByteBuffer pendingPlaintext) {
+        this.channel = channel;
+        this.engine = engine;
+        int packetBufferSize = engine.getSession().getPacketBufferSize();
+        int appBufferSize = engine.getSession().getApplicationBufferSize();
+
+        netIn = ByteBuffer.allocate(Math.max(packetBufferSize, pendingNetData.remaining()));
+        netIn.put(pendingNetData);
+        appIn = ByteBuffer.allocate(pendingPlaintext == null ?
+                                    appBufferSize : Math.max(appBufferSize, pendingPlaintext.remaining()));
+        if (pendingPlaintext != null) {
+            appIn.put(pendingPlaintext);
+        }
+        appIn.flip();
+        netOut = ByteBuffer.allocate(packetBufferSize);
+        netOut.flip();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        readLock.lock();
+        try {
+            if (!appIn.hasRemaining()) {
+                int n = fill();
+                if (n <= 0) {
+                    return n;
+                }
+            }
+            return drainTo(dst);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        readLock.lock();
+        try {
+            if (!appIn.hasRemaining()) {
+                int n = fill();
+                if (n <= 0) {
+                    return n;
+                }
+            }
+            long read = 0;
+            for (int i = offset; i < offset + length && appIn.hasRemaining(); i++) {
+                read += drainTo(dsts[i]);
+            }
+            return read;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    /**
+     * Unwrap until some application data is available.
+     * Must be called while holding readLock with empty appIn.
+     * @return the number of bytes decrypted, 0 if the channel would block, or -1 if reached EOF
+     */
+    private int fill() throws IOException {
+        appIn.clear();
+        try {
+            while (true) {
+                netIn.flip();
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                netIn.compact();
+                handlePostHandshake(result.getHandshakeStatus());
+                switch (result.getStatus()) {
+                    case OK:
+                        // Post-handshake messages (e.g. NewSessionTicket) produce no data
+                        if (appIn.position() > 0) {
+                            return appIn.position();
+                        }
+                        break;
+                    case BUFFER_UNDERFLOW:
+                        if (!netIn.hasRemaining()) {
+                            netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                        }
+                        int read = channel.read(netIn);
+                        if (read <= 0) {
+                            return read;
+                        }
+                        break;
+                    case BUFFER_OVERFLOW:
+                        appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                        break;
+                    case CLOSED:
+                        return -1;
+                    default:
+                        throw new IllegalStateException("Bug. Got status: " + result.getStatus());
+                }
+            }
+        } finally {
+            appIn.flip();
+        }
+    }
+
+    private int drainTo(ByteBuffer dst) {
+        int n = Math.min(appIn.remaining(), dst.remaining());
+        ByteBuffer slice = appIn.duplicate();
+        slice.limit(slice.position() + n);
+        dst.put(slice);
+        appIn.position(appIn.position() + n);
+        return n;
+    }
+
+    /**
+     * Respond to post-handshake messages which require tasks or replies (e.g. TLS 1.3 KeyUpdate)
+     */
+    private void handlePostHandshake(HandshakeStatus status) throws IOException {
+        if (status == HandshakeStatus.NEED_TASK) {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            status = engine.getHandshakeStatus();
+        }
+        if (status == HandshakeStatus.NEED_WRAP) {
+            writeLock.lock();
+            try {
+                if (writeNetOut()) {
+                    wrap(new ByteBuffer[] { EMPTY }, 0, 1);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        writeLock.lock();
+        try {
+            if (!channel.isOpen()) {
+                throw new ClosedChannelException();
+            }
+            if (!writeNetOut()) {
+                return 0;
+            }
+            long written = 0;
+            while (hasRemaining(srcs, offset, length)) {
+                written += wrap(srcs, offset, length);
+                if (!writeNetOut()) {
+                    break;
+                }
+            }
+            return written;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Wrap into netOut, which must be flushed. Must be called while holding writeLock.
+     * @return the number of bytes consumed
+     */
+    private int wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        while (true) {
+            netOut.clear();
+            SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+            netOut.flip();
+            switch (result.getStatus()) {
+                case OK:
+                    return result.bytesConsumed();
+                case BUFFER_OVERFLOW:
+                    netOut = ByteBuffer.allocate(Math.max(netOut.capacity() * 2,
+                                                          engine.getSession().getPacketBufferSize()));
+                    netOut.flip();
+                    break;
+                case CLOSED:
+                    throw new SSLException("SSLEngine is closed");
+                default:
+                    throw new IllegalStateException("Bug. Got status: " + result.getStatus());
+            }
+        }
+    }
+
+    @Override
+    public boolean flush() throws IOException {
+        writeLock.lock();
+        try {
+            return writeNetOut();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Must be called while holding writeLock.
+     * @return true if all pending encrypted data was written
+     */
+    private boolean writeNetOut() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public long transferFrom(FileChannel src, long position, long count) throws IOException {
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException(
+                    String.format("Negative position or count: position=%d, count=%d", position, count));
+        }
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+        long size = src.size();
+        if (position > size) {
+            return 0;
+        }
+        long remaining = Math.min(count, size - position);
+
+        ByteBuffer chunk = BufferPool.SHARED.acquire(FILE_CHUNK_SIZE);
+        long transferred = 0;
+        try {
+            while (transferred < remaining) {
+                chunk.clear();
+                chunk.limit((int) Math.min(FILE_CHUNK_SIZE, remaining - transferred));
+                if (src.read(chunk, position + transferred) <= 0) {
+                    break;
+                }
+                chunk.flip();
+                transferred += write(chunk);
+                if (chunk.hasRemaining()) {
+                    // Would block
+                    break;
+                }
+            }
+        } finally {
+            BufferPool.SHARED.release(chunk);
+        }
+        return transferred;
+    }
+
+    @Override
+    public boolean isKernelTls() {
+        return false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Send close_notify as far as possible without blocking, then close the channel
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            writeLock.lock();
+            try {
+                engine.closeOutbound();
+                if (channel.isOpen() && writeNetOut()) {
+                    wrap(new ByteBuffer[] { EMPTY }, 0, 1);
+                    writeNetOut();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (IOException e) {
+            // Best effort
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Grow the buffer preserving its content. The buffer must be in write mode.
+     */
+    private static ByteBuffer enlarge(ByteBuffer buffer, int proposedCapacity) {
+        ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(proposedCapacity, buffer.capacity() * 2));
+        buffer.flip();
+        newBuffer.put(buffer);
+        return newBuffer;
+    }
+}
@@ -0,0 +1,153 @@
+package com.mayreh.jktls;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLEngine;
+
+import com.mayreh.jktls.CipherSuite.TlsVersion;
+import com.mayreh.jktls.sun.security.ssl.SSLEngineImpl;
+
+/**
+ * Holds TLS 1.3 application traffic secrets of both directions and derives the keys after KeyUpdate
+ * as described in RFC 8446 Section 7.2.
+ * <p>
+ * Since JSSE no longer touches the connection once kernel TLS is enabled, the secrets are captured from
+ * the engine at that time and updated independently from the engine.
+ * This class is not thread-safe.
+ */
+final class Tls13KeySchedule {
+    // Nonce of TLS 1.3 AEADs is always 12 bytes
+    private static final int IV_LENGTH = 12;
+    // AES-GCM salt is the first 4 bytes of the iv
+    private static final int SALT_LENGTH = 4;
+
+    private final CipherSuite suite;
+    private final int hashLength;
+    private byte[] writeSecret;
+    private byte[] readSecret;
+
+    private Tls13KeySchedule(String protocol, String cipherSuiteName, byte[] writeSecret, byte[] readSecret) {
+        suite = CipherSuite.of(protocol, cipherSuiteName);
+        if (suite.version != TlsVersion.TLS13) {
+            throw new UnsupportedOperationException("KeyUpdate is supported only on TLS 1.3: " + protocol);
+        }
+        hashLength = newMac(suite.hmacAlgorithm()).getMacLength();
+        this.writeSecret = writeSecret;
+        this.readSecret = readSecret;
+    }
+
+    /**
+     * Capture the current traffic secrets of the engine
+     * @throws UnsupportedOperationException if the session is not TLS 1.3 or the secrets are not available
+     */
+    static Tls13KeySchedule from(SSLEngine engine) {
+        if (!SSLEngineImpl.isInstance(engine)) {
+            throw new UnsupportedOperationException("Unsupported SSLEngine implementation");
+        }
+        SSLEngineImpl impl = new SSLEngineImpl(engine);
+        SecretKey writeSecret = impl.writeCipher().baseSecret().orElseThrow(
+                () -> new UnsupportedOperationException("Write traffic secret is not available"));
+        SecretKey readSecret = impl.readCipher().baseSecret().orElseThrow(
+                () -> new UnsupportedOperationException("Read traffic secret is not available"));
+        return new Tls13KeySchedule(engine.getSession().getProtocol(),
+                                    engine.getSession().getCipherSuite(),
+                                    writeSecret.getEncoded(),
+                                    readSecret.getEncoded());
+    }
+
+    /**
+     * Advance the write secret to the next generation and put the crypto info for it to the buffer
+     * @return the cipher type of the info
+     */
+    CipherType nextWriteInfo(CryptoInfoBuffer dst) {
+        writeSecret = nextSecret(writeSecret);
+        return putCryptoInfo(writeSecret, dst);
+    }
+
+    /**
+     * Advance the read secret to the next generation and put the crypto info for it to the buffer
+     * @return the cipher type of the info
+     */
+    CipherType nextReadInfo(CryptoInfoBuffer dst) {
+        readSecret = nextSecret(readSecret);
+        return putCryptoInfo(readSecret, dst);
+    }
+
+    private byte[] nextSecret(byte[] secret) {
+        byte[] next = hkdfExpandLabel(suite.hmacAlgorithm(), secret, "traffic upd", hashLength);
+        Arrays.fill(secret, (byte) 0);
+        return next;
+    }
+
+    private CipherType putCryptoInfo(byte[] secret, CryptoInfoBuffer dst) {
+        CipherType type = suite.cipherType;
+        byte[] key = hkdfExpandLabel(suite.hmacAlgorithm(), secret, "key", type.keySize);
+        byte[] nonce = hkdfExpandLabel(suite.hmacAlgorithm(), secret, "iv", IV_LENGTH);
+        // Follows the same layout as the ones extracted from JSSE
+        byte[] salt = Arrays.copyOfRange(nonce, 0, type.saltSize);
+        byte[] iv = type.saltSize == SALT_LENGTH ? Arrays.copyOfRange(nonce, SALT_LENGTH, IV_LENGTH) : nonce;
+        try {
+            return dst.put(suite, iv, key, salt);
+        } finally {
+            // The keys live only in the buffer, which is wiped once passed to the kernel
+            for (byte[] b : new byte[][] { key, nonce, salt, iv }) {
+                Arrays.fill(b, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * HKDF-Expand-Label in RFC 8446 Section 7.1 with empty context
+     */
+    static byte[] hkdfExpandLabel(String hmacAlgorithm, byte[] secret, String label, int length) {
+        byte[] fullLabel = ("tls13 " + label).getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer info = ByteBuffer.allocate(2 + 1 + fullLabel.length + 1);
+        info.putShort((short) length)
+            .put((byte) fullLabel.length)
+            .put(fullLabel)
+            .put((byte) 0);
+        return hkdfExpand(hmacAlgorithm, secret, info.array(), length);
+    }
+
+    /**
+     * HKDF-Expand in RFC 5869
+     */
+    static byte[] hkdfExpand(String hmacAlgorithm, byte[] prk, byte[] info, int length) {
+        Mac mac = newMac(hmacAlgorithm);
+        try {
+            mac.init(new SecretKeySpec(prk, hmacAlgorithm));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException(e);
+        }
+        byte[] okm = new byte[length];
+        byte[] t = new byte[0];
+        for (int offset = 0, i = 1; offset < length; i++) {
+            mac.update(t);
+            mac.update(info);
+            mac.update((byte) i);
+            byte[] block = mac.doFinal();
+            // Each block is a part of the output
+            Arrays.fill(t, (byte) 0);
+            t = block;
+            int n = Math.min(t.length, length - offset);
+            System.arraycopy(t, 0, okm, offset, n);
+            offset += n;
+        }
+        Arrays.fill(t, (byte) 0);
+        return okm;
+    }
+
+    private static Mac newMac(String algorithm) {
+        try {
+            return Mac.getInstance(algorithm);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
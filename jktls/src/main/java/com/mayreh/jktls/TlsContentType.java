@@ -0,0 +1,34 @@
+package com.mayreh.jktls;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.Accessors;
+
+/**
+ * Content types of TLS records, which are sent or received by {@link KTlsSocketChannel#sendRecord}
+ * and {@link KTlsSocketChannel#readRecord}.
+ */
+@Accessors(fluent = true)
+@RequiredArgsConstructor
+public enum TlsContentType {
+    CHANGE_CIPHER_SPEC((byte) 20),
+    ALERT((byte) 21),
+    HANDSHAKE((byte) 22),
+    APPLICATION_DATA((byte) 23),
+    ;
+
+    @Getter
+    private final byte value;
+
+    /**
+     * @throws IllegalArgumentException if the value is not a known content type
+     */
+    public static TlsContentType of(int value) {
+        for (TlsContentType type : values()) {
+            if (type.value == value) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown content type: " + value);
+    }
+}
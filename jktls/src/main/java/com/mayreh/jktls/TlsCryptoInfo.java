@@ -1,13 +1,22 @@
 package com.mayreh.jktls;
 
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
 import javax.net.ssl.SSLEngine;
 
+import com.mayreh.jktls.sun.security.ssl.CipherContext;
 import com.mayreh.jktls.sun.security.ssl.SSLEngineImpl;
-import com.mayreh.jktls.sun.security.ssl.SSLWriteCipher;
 
 import lombok.Value;
 import lombok.experimental.Accessors;
 
+/**
+ * Crypto information to enable kernel TLS, which corresponds to tls12_crypto_info_* struct.
+ * <p>
+ * Since the key material is held on heap until this object is collected, {@link KTlsSocketChannel#upgrade}
+ * doesn't create this but copies the keys from the engine to an off-heap buffer directly.
+ */
 @Value
 @Accessors(fluent = true)
 public class TlsCryptoInfo {
@@ -18,25 +27,77 @@ public class TlsCryptoInfo {
     byte[] salt;
     byte[] recSeq;
 
+    /**
+     * Extract crypto information for data transmission (i.e. {@link KTlsSocketOptions#TLS_TX}).
+     * The keys are the ones of the engine's side, i.e. client_write_key in client mode and
+     * server_write_key in server mode.
+     */
     public static TlsCryptoInfo from(SSLEngine engine) {
+        return create(engine, new SSLEngineImpl(checkEngine(engine))
+                .writeCipher()
+                .context());
+    }
+
+    /**
+     * Extract crypto information for data reception (i.e. {@link KTlsSocketOptions#TLS_RX}),
+     * which are the keys of the peer's side.
+     */
+    public static TlsCryptoInfo forRead(SSLEngine engine) {
+        return create(engine, new SSLEngineImpl(checkEngine(engine))
+                .readCipher()
+                .context());
+    }
+
+    /**
+     * Look up the {@link CipherSuite} of this info
+     * @throws UnsupportedOperationException if the protocol or the cipher suite is not supported
+     */
+    CipherSuite suite() {
+        return CipherSuite.of(protocol, cipherSuite);
+    }
+
+    /**
+     * Write this info to the buffer as tls12_crypto_info_* struct.
+     * The buffer's byte order must be the native order.
+     */
+    void writeTo(ByteBuffer dst, CipherSuite suite) {
+        CipherType type = suite.cipherType;
+        checkLength("iv", iv, type.ivSize);
+        checkLength("key", key, type.keySize);
+        checkLength("salt", salt, type.saltSize);
+        checkLength("rec_seq", recSeq, type.recSeqSize);
+        dst.putShort(suite.version.value)
+           .putShort((short) type.id)
+           .put(iv)
+           .put(key)
+           .put(salt)
+           .put(recSeq);
+    }
+
+    private static void checkLength(String name, byte[] value, int expected) {
+        if (value.length != expected) {
+            throw new IllegalArgumentException("invalid " + name);
+        }
+    }
+
+    private static SSLEngine checkEngine(SSLEngine engine) {
         if (!SSLEngineImpl.isInstance(engine)) {
             throw new UnsupportedOperationException("Unsupported SSLEngine implementation");
         }
-        SSLWriteCipher writeCipher = new SSLEngineImpl(engine)
-                .conContext()
-                .outputRecord()
-                .writeCipher();
-        return writeCipher.context()
-                          .map(ctx -> new TlsCryptoInfo(
-                                  engine.getSession().getProtocol(),
-                                  engine.getSession().getCipherSuite(),
-                                  ctx.getIv(),
-                                  ctx.getKey(),
-                                  ctx.getSalt(),
-                                  ctx.getRecSeq()))
-                          .orElseThrow(() -> new UnsupportedOperationException(
-                                  String.format("Unsupported protocol or cipher suite: protocol=%s, suite=%s",
-                                                engine.getSession().getProtocol(),
-                                                engine.getSession().getCipherSuite())));
+        return engine;
+    }
+
+    private static TlsCryptoInfo create(SSLEngine engine, Optional<CipherContext> context) {
+        return context.map(ctx -> new TlsCryptoInfo(
+                              engine.getSession().getProtocol(),
+                              engine.getSession().getCipherSuite(),
+                              ctx.getIv(),
+                              ctx.getKey(),
+                              ctx.getSalt(),
+                              ctx.getRecSeq()))
+                      .orElseThrow(() -> new UnsupportedOperationException(
+                              String.format("Unsupported protocol or cipher suite: protocol=%s, suite=%s",
+                                            engine.getSession().getProtocol(),
+                                            engine.getSession().getCipherSuite())));
     }
 }
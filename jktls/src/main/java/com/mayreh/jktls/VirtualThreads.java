@@ -0,0 +1,54 @@
+package com.mayreh.jktls;
+
+import static com.mayreh.jktls.reflection.Utils.doReflection;
+import static com.mayreh.jktls.reflection.Utils.findMethodHandle;
+import static com.mayreh.jktls.reflection.Utils.propagate;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads (JDK 21+) while keeping the library compatible with older JDKs.
+ */
+public final class VirtualThreads {
+    private static final MethodHandle isVirtual = findMethodHandle(Thread.class, "isVirtual");
+
+    private VirtualThreads() {}
+
+    /**
+     * Returns true if the running JDK supports virtual threads
+     */
+    public static boolean isSupported() {
+        return isVirtual != null;
+    }
+
+    /**
+     * Returns true if the thread is a virtual thread. Always false on JDKs without virtual threads.
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (isVirtual == null) {
+            return false;
+        }
+        try {
+            return (boolean) isVirtual.invokeExact((Object) thread);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    /**
+     * Returns the {@link ThreadFactory} which creates virtual threads named with the prefix and a counter.
+     * @throws UnsupportedOperationException if the running JDK doesn't support virtual threads
+     */
+    public static ThreadFactory factory(String namePrefix) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads are not supported in this JDK");
+        }
+        return doReflection(() -> {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        });
+    }
+}
@@ -1,5 +1,7 @@
 package com.mayreh.jktls.reflection;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 
@@ -18,6 +20,17 @@ public final class Utils {
         return doReflection(() -> Class.forName(name));
     }
 
+    /**
+     * Returns the class with given name, or null if it doesn't exist in the running JDK.
+     */
+    public static Class<?> findClass(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
     public static Method getMethod(Class<?> clazz, String name, Class<?>... parameterTypes) {
         return doReflection(() -> {
             Method method = clazz.getDeclaredMethod(name, parameterTypes);
@@ -33,4 +46,63 @@ public final class Utils {
             return field;
         });
     }
+
+    /**
+     * Returns the {@link MethodHandle} to get the field's value.
+     * Reference types in the handle's type are erased to {@link Object} so that the handle can be
+     * invoked by {@link MethodHandle#invokeExact} without referring to inaccessible classes.
+     * Once stored in a static final field, the JIT can inline the invocation like a plain field access.
+     */
+    public static MethodHandle getterHandle(Class<?> clazz, String name) {
+        Field field = getField(clazz, name);
+        MethodHandle handle = doReflection(() -> MethodHandles.lookup().unreflectGetter(field));
+        return handle.asType(handle.type().erase());
+    }
+
+    /**
+     * Same as {@link #getterHandle} but returns null if the field doesn't exist in the running JDK.
+     */
+    public static MethodHandle findGetterHandle(Class<?> clazz, String name) {
+        try {
+            clazz.getDeclaredField(name);
+        } catch (NoSuchFieldException e) {
+            return null;
+        }
+        return getterHandle(clazz, name);
+    }
+
+    /**
+     * Returns the {@link MethodHandle} to invoke the method.
+     * Reference types in the handle's type are erased as well as {@link #getterHandle}.
+     */
+    public static MethodHandle methodHandle(Class<?> clazz, String name, Class<?>... parameterTypes) {
+        Method method = getMethod(clazz, name, parameterTypes);
+        MethodHandle handle = doReflection(() -> MethodHandles.lookup().unreflect(method));
+        return handle.asType(handle.type().erase());
+    }
+
+    /**
+     * Same as {@link #methodHandle} but returns null if the method doesn't exist in the running JDK.
+     */
+    public static MethodHandle findMethodHandle(Class<?> clazz, String name, Class<?>... parameterTypes) {
+        try {
+            clazz.getDeclaredMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+        return methodHandle(clazz, name, parameterTypes);
+    }
+
+    /**
+     * Converts the throwable from {@link MethodHandle} invocation to unchecked one.
+     */
+    public static RuntimeException propagate(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new RuntimeException(t);
+    }
 }
@@ -1,11 +1,11 @@
 package com.mayreh.jktls.sun.nio.ch;
 
 import static com.mayreh.jktls.reflection.Utils.classForName;
-import static com.mayreh.jktls.reflection.Utils.doReflection;
-import static com.mayreh.jktls.reflection.Utils.getField;
+import static com.mayreh.jktls.reflection.Utils.getterHandle;
+import static com.mayreh.jktls.reflection.Utils.propagate;
 
 import java.io.FileDescriptor;
-import java.lang.reflect.Field;
+import java.lang.invoke.MethodHandle;
 
 import lombok.RequiredArgsConstructor;
 
@@ -15,12 +15,16 @@ import lombok.RequiredArgsConstructor;
 @RequiredArgsConstructor
 public class FileChannelImpl {
     private static final Class<?> clazz = classForName("sun.nio.ch.FileChannelImpl");
-    private static final Field fd = getField(clazz, "fd");
+    private static final MethodHandle fd = getterHandle(clazz, "fd");
 
     private final Object obj;
 
     public FileDescriptor fd() {
-        return (FileDescriptor) doReflection(() -> fd.get(obj));
+        try {
+            return (FileDescriptor) (Object) fd.invokeExact(obj);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 
     public static boolean isInstance(Object obj) {
@@ -0,0 +1,24 @@
+package com.mayreh.jktls.sun.nio.ch;
+
+import static com.mayreh.jktls.reflection.Utils.classForName;
+import static com.mayreh.jktls.reflection.Utils.doReflection;
+import static com.mayreh.jktls.reflection.Utils.getField;
+
+/**
+ * Mirror of `sun.nio.ch.Net` for exposure
+ */
+public final class Net {
+    private static final Class<?> clazz = classForName("sun.nio.ch.Net");
+
+    /**
+     * Event for {@link SelChImpl#park(int)} to wait until the channel becomes readable
+     */
+    public static final short POLLIN = doReflection(() -> getField(clazz, "POLLIN").getShort(null));
+
+    /**
+     * Event for {@link SelChImpl#park(int)} to wait until the channel becomes writable
+     */
+    public static final short POLLOUT = doReflection(() -> getField(clazz, "POLLOUT").getShort(null));
+
+    private Net() {}
+}
@@ -0,0 +1,55 @@
+package com.mayreh.jktls.sun.nio.ch;
+
+import static com.mayreh.jktls.reflection.Utils.classForName;
+import static com.mayreh.jktls.reflection.Utils.findMethodHandle;
+import static com.mayreh.jktls.reflection.Utils.methodHandle;
+import static com.mayreh.jktls.reflection.Utils.propagate;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Mirror of `sun.nio.ch.SelChImpl` for exposure.
+ * Implemented by all selectable channels in the JDK (e.g. sockets and pipes)
+ */
+@RequiredArgsConstructor
+public class SelChImpl {
+    private static final Class<?> clazz = classForName("sun.nio.ch.SelChImpl");
+    private static final MethodHandle getFD = methodHandle(clazz, "getFD");
+    // Not available in old JDKs
+    private static final MethodHandle park = findMethodHandle(clazz, "park", int.class);
+
+    private final Object obj;
+
+    public FileDescriptor getFD() {
+        try {
+            return (FileDescriptor) (Object) getFD.invokeExact(obj);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    /**
+     * Park the current thread until the channel becomes ready for the event (e.g. {@link Net#POLLOUT}).
+     * Virtual threads are unmounted from the carrier thread while parking.
+     */
+    public void park(int event) throws IOException {
+        if (park == null) {
+            throw new UnsupportedOperationException("park is not supported in this JDK");
+        }
+        try {
+            park.invokeExact(obj, event);
+        } catch (IOException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    public static boolean isInstance(Object obj) {
+        return clazz.isInstance(obj);
+    }
+}
@@ -1,11 +1,13 @@
 package com.mayreh.jktls.sun.nio.ch;
 
 import static com.mayreh.jktls.reflection.Utils.classForName;
-import static com.mayreh.jktls.reflection.Utils.doReflection;
-import static com.mayreh.jktls.reflection.Utils.getMethod;
+import static com.mayreh.jktls.reflection.Utils.findMethodHandle;
+import static com.mayreh.jktls.reflection.Utils.methodHandle;
+import static com.mayreh.jktls.reflection.Utils.propagate;
 
 import java.io.FileDescriptor;
-import java.lang.reflect.Method;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
 
 import lombok.RequiredArgsConstructor;
 
@@ -15,12 +17,37 @@ import lombok.RequiredArgsConstructor;
 @RequiredArgsConstructor
 public class SocketChannelImpl {
     private static final Class<?> clazz = classForName("sun.nio.ch.SocketChannelImpl");
-    private static final Method getFD = getMethod(clazz, "getFD");
+    private static final MethodHandle getFD = methodHandle(clazz, "getFD");
+    // Since JDK 19 along with virtual threads
+    private static final MethodHandle configureSocketNonBlockingIfVirtualThread =
+            findMethodHandle(clazz, "configureSocketNonBlockingIfVirtualThread");
 
     private final Object obj;
 
     public FileDescriptor getFD() {
-        return (FileDescriptor) doReflection(() -> getFD.invoke(obj));
+        try {
+            return (FileDescriptor) (Object) getFD.invokeExact(obj);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    /**
+     * Switch the socket to non-blocking mode if the current thread is a virtual thread,
+     * while the channel itself stays in blocking mode.
+     * The JDK does the same on every blocking IO on virtual threads. No-op in JDKs without virtual threads.
+     */
+    public void configureSocketNonBlockingIfVirtualThread() throws IOException {
+        if (configureSocketNonBlockingIfVirtualThread == null) {
+            return;
+        }
+        try {
+            configureSocketNonBlockingIfVirtualThread.invokeExact(obj);
+        } catch (IOException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 
     public static boolean isInstance(Object obj) {
@@ -1,10 +1,10 @@
 package com.mayreh.jktls.sun.security.ssl;
 
 import static com.mayreh.jktls.reflection.Utils.classForName;
-import static com.mayreh.jktls.reflection.Utils.doReflection;
-import static com.mayreh.jktls.reflection.Utils.getMethod;
+import static com.mayreh.jktls.reflection.Utils.methodHandle;
+import static com.mayreh.jktls.reflection.Utils.propagate;
 
-import java.lang.reflect.Method;
+import java.lang.invoke.MethodHandle;
 
 import lombok.RequiredArgsConstructor;
 
@@ -14,11 +14,15 @@ import lombok.RequiredArgsConstructor;
 @RequiredArgsConstructor
 public class Authenticator {
     private static final Class<?> clazz = classForName("sun.security.ssl.Authenticator");
-    private static final Method sequenceNumber = getMethod(clazz, "sequenceNumber");
+    static final MethodHandle sequenceNumber = methodHandle(clazz, "sequenceNumber");
 
     private final Object obj;
 
     public byte[] sequenceNumber() {
-        return doReflection(() -> (byte[]) sequenceNumber.invoke(obj));
+        try {
+            return (byte[]) (Object) sequenceNumber.invokeExact(obj);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 }
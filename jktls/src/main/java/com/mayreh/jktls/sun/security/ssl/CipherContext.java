@@ -0,0 +1,14 @@
+package com.mayreh.jktls.sun.security.ssl;
+
+import lombok.Value;
+
+/**
+ * Context information to configure kTLS socket's parameters
+ */
+@Value
+public class CipherContext {
+    byte[] iv;
+    byte[] key;
+    byte[] salt;
+    byte[] recSeq;
+}
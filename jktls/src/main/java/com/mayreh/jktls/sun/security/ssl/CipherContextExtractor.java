@@ -0,0 +1,132 @@
+package com.mayreh.jktls.sun.security.ssl;
+
+import static com.mayreh.jktls.reflection.Utils.findClass;
+import static com.mayreh.jktls.reflection.Utils.getterHandle;
+import static com.mayreh.jktls.reflection.Utils.propagate;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Extract {@link CipherContext} from JSSE's AEAD cipher object.
+ * All supported ciphers hold the secret key in `key` field and the static part of the nonce in another field,
+ * so an extractor is fully described by the cipher's class name, the nonce field name and {@link NonceLayout}.
+ */
+class CipherContextExtractor {
+    private final Class<?> clazz;
+    private final MethodHandle key;
+    private final MethodHandle nonce;
+    private final NonceLayout nonceLayout;
+
+    CipherContextExtractor(String className, String nonceField, NonceLayout nonceLayout) {
+        // Some ciphers are not available depending on the JDK version. (e.g. ChaCha20-Poly1305 is since JDK 12)
+        clazz = findClass(className);
+        key = clazz == null ? null : getterHandle(clazz, "key");
+        nonce = clazz == null ? null : getterHandle(clazz, nonceField);
+        this.nonceLayout = nonceLayout;
+    }
+
+    boolean isSupported(Object cipher) {
+        return clazz != null && clazz.isInstance(cipher);
+    }
+
+    CipherContext extract(Object cipher, byte[] sequenceNumber) {
+        try {
+            SecretKeySpec keySpec = (SecretKeySpec) (Object) key.invokeExact(cipher);
+            byte[] staticNonce = (byte[]) (Object) nonce.invokeExact(cipher);
+            return nonceLayout.create(keySpec.getEncoded(), staticNonce, sequenceNumber);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    /**
+     * Same as {@link #extract} but puts iv, key, salt and rec_seq to the buffer in this order,
+     * i.e. the layout of tls12_crypto_info_* struct following the header.
+     * The copy of the key is wiped once written, so no key material is left on heap.
+     */
+    void writeTo(Object cipher, byte[] sequenceNumber, ByteBuffer dst) {
+        byte[] encodedKey = null;
+        try {
+            SecretKeySpec keySpec = (SecretKeySpec) (Object) key.invokeExact(cipher);
+            byte[] staticNonce = (byte[]) (Object) nonce.invokeExact(cipher);
+            // SecretKeySpec doesn't expose its key without copying
+            encodedKey = keySpec.getEncoded();
+            nonceLayout.write(encodedKey, staticNonce, sequenceNumber, dst);
+        } catch (Throwable t) {
+            throw propagate(t);
+        } finally {
+            if (encodedKey != null) {
+                Arrays.fill(encodedKey, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Describes how to map the cipher's nonce to kernel's iv and salt
+     */
+    enum NonceLayout {
+        /**
+         * TLS 1.2 AES-GCM: 4-byte implicit salt (fixedIv) and 8-byte explicit nonce sent on the wire.
+         * JSSE uses the sequence number as the explicit nonce.
+         */
+        EXPLICIT {
+            @Override
+            CipherContext create(byte[] key, byte[] staticNonce, byte[] seq) {
+                return new CipherContext(seq, key, staticNonce, seq);
+            }
+
+            @Override
+            void write(byte[] key, byte[] staticNonce, byte[] seq, ByteBuffer dst) {
+                dst.put(seq).put(key).put(staticNonce).put(seq);
+            }
+        },
+        /**
+         * TLS 1.3 AES-GCM: the whole 12-byte static iv XOR'ed with the padded sequence number forms the nonce.
+         * The kernel builds the same nonce from salt || iv, so we just split the static iv into them.
+         */
+        SPLIT {
+            @Override
+            CipherContext create(byte[] key, byte[] staticNonce, byte[] seq) {
+                return new CipherContext(Arrays.copyOfRange(staticNonce, 4, staticNonce.length),
+                                         key,
+                                         Arrays.copyOfRange(staticNonce, 0, 4),
+                                         seq);
+            }
+
+            @Override
+            void write(byte[] key, byte[] staticNonce, byte[] seq, ByteBuffer dst) {
+                dst.put(staticNonce, 4, staticNonce.length - 4)
+                   .put(key)
+                   .put(staticNonce, 0, 4)
+                   .put(seq);
+            }
+        },
+        /**
+         * ChaCha20-Poly1305 (both TLS 1.2 and 1.3): same nonce construction as {@link #SPLIT}
+         * but the kernel takes the whole 12-byte iv without salt.
+         */
+        WHOLE {
+            @Override
+            CipherContext create(byte[] key, byte[] staticNonce, byte[] seq) {
+                return new CipherContext(staticNonce, key, new byte[0], seq);
+            }
+
+            @Override
+            void write(byte[] key, byte[] staticNonce, byte[] seq, ByteBuffer dst) {
+                dst.put(staticNonce).put(key).put(seq);
+            }
+        },
+        ;
+
+        abstract CipherContext create(byte[] key, byte[] staticNonce, byte[] seq);
+
+        /**
+         * Same as {@link #create} but puts the fields to the buffer without intermediate arrays
+         */
+        abstract void write(byte[] key, byte[] staticNonce, byte[] seq, ByteBuffer dst);
+    }
+}
@@ -0,0 +1,31 @@
+package com.mayreh.jktls.sun.security.ssl;
+
+import static com.mayreh.jktls.reflection.Utils.classForName;
+import static com.mayreh.jktls.reflection.Utils.getterHandle;
+import static com.mayreh.jktls.reflection.Utils.propagate;
+
+import java.lang.invoke.MethodHandle;
+
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Mirror of `sun.security.ssl.HandshakeContext` for exposure
+ */
+@RequiredArgsConstructor
+public class HandshakeContext {
+    private static final Class<?> clazz = classForName("sun.security.ssl.HandshakeContext");
+    private static final MethodHandle isResumption = getterHandle(clazz, "isResumption");
+
+    private final Object obj;
+
+    /**
+     * Whether the handshake resumes a session, which is decided once the hello messages are processed
+     */
+    public boolean isResumption() {
+        try {
+            return (boolean) isResumption.invokeExact(obj);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+}
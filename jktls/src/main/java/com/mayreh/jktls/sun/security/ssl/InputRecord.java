@@ -0,0 +1,28 @@
+package com.mayreh.jktls.sun.security.ssl;
+
+import static com.mayreh.jktls.reflection.Utils.classForName;
+import static com.mayreh.jktls.reflection.Utils.getterHandle;
+import static com.mayreh.jktls.reflection.Utils.propagate;
+
+import java.lang.invoke.MethodHandle;
+
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Mirror of `sun.security.ssl.InputRecord` for exposure
+ */
+@RequiredArgsConstructor
+public class InputRecord {
+    private static final Class<?> clazz = classForName("sun.security.ssl.InputRecord");
+    static final MethodHandle readCipher = getterHandle(clazz, "readCipher");
+
+    private final Object obj;
+
+    public SSLReadCipher readCipher() {
+        try {
+            return new SSLReadCipher((Object) readCipher.invokeExact(obj));
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+}
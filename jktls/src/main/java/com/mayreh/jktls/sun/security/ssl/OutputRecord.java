@@ -1,10 +1,10 @@
 package com.mayreh.jktls.sun.security.ssl;
 
 import static com.mayreh.jktls.reflection.Utils.classForName;
-import static com.mayreh.jktls.reflection.Utils.doReflection;
-import static com.mayreh.jktls.reflection.Utils.getField;
+import static com.mayreh.jktls.reflection.Utils.getterHandle;
+import static com.mayreh.jktls.reflection.Utils.propagate;
 
-import java.lang.reflect.Field;
+import java.lang.invoke.MethodHandle;
 
 import lombok.RequiredArgsConstructor;
 
@@ -14,11 +14,15 @@ import lombok.RequiredArgsConstructor;
 @RequiredArgsConstructor
 public class OutputRecord {
     private static final Class<?> clazz = classForName("sun.security.ssl.OutputRecord");
-    private static final Field writeCipher = getField(clazz, "writeCipher");
+    static final MethodHandle writeCipher = getterHandle(clazz, "writeCipher");
 
     private final Object obj;
 
     public SSLWriteCipher writeCipher() {
-        return new SSLWriteCipher(doReflection(() -> writeCipher.get(obj)));
+        try {
+            return new SSLWriteCipher((Object) writeCipher.invokeExact(obj));
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 }
@@ -1,10 +1,11 @@
 package com.mayreh.jktls.sun.security.ssl;
 
 import static com.mayreh.jktls.reflection.Utils.classForName;
-import static com.mayreh.jktls.reflection.Utils.doReflection;
-import static com.mayreh.jktls.reflection.Utils.getField;
+import static com.mayreh.jktls.reflection.Utils.getterHandle;
+import static com.mayreh.jktls.reflection.Utils.propagate;
+import static java.lang.invoke.MethodHandles.filterReturnValue;
 
-import java.lang.reflect.Field;
+import java.lang.invoke.MethodHandle;
 
 import lombok.RequiredArgsConstructor;
 
@@ -14,11 +15,43 @@ import lombok.RequiredArgsConstructor;
 @RequiredArgsConstructor
 public class SSLEngineImpl {
     private static final Class<?> clazz = classForName("sun.security.ssl.SSLEngineImpl");
-    private static final Field conContext = getField(clazz, "conContext");
+    private static final MethodHandle conContext = getterHandle(clazz, "conContext");
+    // Shortcuts to the ciphers which skip creating intermediate mirrors
+    private static final MethodHandle writeCipher = filterReturnValue(
+            filterReturnValue(conContext, TransportContext.outputRecord), OutputRecord.writeCipher);
+    private static final MethodHandle readCipher = filterReturnValue(
+            filterReturnValue(conContext, TransportContext.inputRecord), InputRecord.readCipher);
+
     private final Object obj;
 
     public TransportContext conContext() {
-        return new TransportContext(doReflection(() -> conContext.get(obj)));
+        try {
+            return new TransportContext((Object) conContext.invokeExact(obj));
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    /**
+     * Equivalent to {@code conContext().outputRecord().writeCipher()}
+     */
+    public SSLWriteCipher writeCipher() {
+        try {
+            return new SSLWriteCipher((Object) writeCipher.invokeExact(obj));
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    /**
+     * Equivalent to {@code conContext().inputRecord().readCipher()}
+     */
+    public SSLReadCipher readCipher() {
+        try {
+            return new SSLReadCipher((Object) readCipher.invokeExact(obj));
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 
     public static boolean isInstance(Object obj) {
@@ -0,0 +1,106 @@
+package com.mayreh.jktls.sun.security.ssl;
+
+import static com.mayreh.jktls.reflection.Utils.classForName;
+import static com.mayreh.jktls.reflection.Utils.findGetterHandle;
+import static com.mayreh.jktls.reflection.Utils.getterHandle;
+import static com.mayreh.jktls.reflection.Utils.propagate;
+import static java.lang.invoke.MethodHandles.filterReturnValue;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+import javax.crypto.SecretKey;
+
+import com.mayreh.jktls.sun.security.ssl.CipherContextExtractor.NonceLayout;
+
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Mirror of `sun.security.ssl.SSLCipher$SSLReadCipher` for exposure
+ */
+@RequiredArgsConstructor
+public class SSLReadCipher {
+    private static final Class<?> clazz = classForName("sun.security.ssl.SSLCipher$SSLReadCipher");
+    private static final MethodHandle authenticator = getterHandle(clazz, "authenticator");
+    private static final MethodHandle sequenceNumber =
+            filterReturnValue(authenticator, Authenticator.sequenceNumber);
+    // The traffic secret of TLS 1.3, which doesn't exist in JDKs without TLS 1.3 support
+    private static final MethodHandle baseSecret = findGetterHandle(clazz, "baseSecret");
+
+    private final Object obj;
+
+    public Authenticator authenticator() {
+        try {
+            return new Authenticator((Object) authenticator.invokeExact(obj));
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    /**
+     * Equivalent to {@code authenticator().sequenceNumber()}
+     */
+    public byte[] sequenceNumber() {
+        try {
+            return (byte[]) (Object) sequenceNumber.invokeExact(obj);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    /**
+     * The current traffic secret, which is set only for TLS 1.3
+     */
+    public Optional<SecretKey> baseSecret() {
+        if (baseSecret == null) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.ofNullable((SecretKey) (Object) baseSecret.invokeExact(obj));
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    public Optional<CipherContext> context() {
+        for (ReadCipherType type : ReadCipherType.values()) {
+            if (type.extractor.isSupported(obj)) {
+                return Optional.of(type.extractor.extract(obj, sequenceNumber()));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Put the same information as {@link #context()} to the buffer in the layout of tls12_crypto_info_* struct
+     * following the header, without leaving the key on heap.
+     * @return false if the cipher is not supported, in which case nothing is written
+     */
+    public boolean writeContext(ByteBuffer dst) {
+        for (ReadCipherType type : ReadCipherType.values()) {
+            if (type.extractor.isSupported(obj)) {
+                type.extractor.writeTo(obj, sequenceNumber(), dst);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public enum ReadCipherType {
+        T12_GCM("sun.security.ssl.SSLCipher$T12GcmReadCipherGenerator$GcmReadCipher",
+                "fixedIv", NonceLayout.EXPLICIT),
+        T13_GCM("sun.security.ssl.SSLCipher$T13GcmReadCipherGenerator$GcmReadCipher",
+                "iv", NonceLayout.SPLIT),
+        T12_CC20_P1305("sun.security.ssl.SSLCipher$T12CC20P1305ReadCipherGenerator$CC20P1305ReadCipher",
+                       "iv", NonceLayout.WHOLE),
+        T13_CC20_P1305("sun.security.ssl.SSLCipher$T13CC20P1305ReadCipherGenerator$CC20P1305ReadCipher",
+                       "iv", NonceLayout.WHOLE),
+        ;
+        final CipherContextExtractor extractor;
+
+        ReadCipherType(String className, String nonceField, NonceLayout nonceLayout) {
+            extractor = new CipherContextExtractor(className, nonceField, nonceLayout);
+        }
+    }
+}
@@ -1,18 +1,20 @@
 package com.mayreh.jktls.sun.security.ssl;
 
 import static com.mayreh.jktls.reflection.Utils.classForName;
-import static com.mayreh.jktls.reflection.Utils.doReflection;
-import static com.mayreh.jktls.reflection.Utils.getField;
+import static com.mayreh.jktls.reflection.Utils.findGetterHandle;
+import static com.mayreh.jktls.reflection.Utils.getterHandle;
+import static com.mayreh.jktls.reflection.Utils.propagate;
+import static java.lang.invoke.MethodHandles.filterReturnValue;
 
-import java.lang.reflect.Field;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
 import java.util.Optional;
 
-import javax.crypto.spec.SecretKeySpec;
+import javax.crypto.SecretKey;
 
-import com.mayreh.jktls.sun.security.ssl.SSLWriteCipher.WriteCipherContextExtractor.T12Gcm;
+import com.mayreh.jktls.sun.security.ssl.CipherContextExtractor.NonceLayout;
 
 import lombok.RequiredArgsConstructor;
-import lombok.Value;
 
 /**
  * Mirror of `sun.security.ssl.SSLCipher$SSLWriteCipher` for exposure
@@ -20,74 +22,85 @@ import lombok.Value;
 @RequiredArgsConstructor
 public class SSLWriteCipher {
     private static final Class<?> clazz = classForName("sun.security.ssl.SSLCipher$SSLWriteCipher");
-    private static final Field authenticator = getField(clazz, "authenticator");
+    private static final MethodHandle authenticator = getterHandle(clazz, "authenticator");
+    private static final MethodHandle sequenceNumber =
+            filterReturnValue(authenticator, Authenticator.sequenceNumber);
+    // The traffic secret of TLS 1.3, which doesn't exist in JDKs without TLS 1.3 support
+    private static final MethodHandle baseSecret = findGetterHandle(clazz, "baseSecret");
 
     private final Object obj;
 
     public Authenticator authenticator() {
-        return new Authenticator(doReflection(() -> authenticator.get(obj)));
+        try {
+            return new Authenticator((Object) authenticator.invokeExact(obj));
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 
-    public Optional<WriteCipherContext> context() {
-        for (WriteCipherType type : WriteCipherType.values()) {
-            if (type.isSupported(this)) {
-                return Optional.of(type.extractor.extract(this));
-            }
+    /**
+     * Equivalent to {@code authenticator().sequenceNumber()}
+     */
+    public byte[] sequenceNumber() {
+        try {
+            return (byte[]) (Object) sequenceNumber.invokeExact(obj);
+        } catch (Throwable t) {
+            throw propagate(t);
         }
-        return Optional.empty();
     }
 
     /**
-     * Context information to configure kTLS socket's parameters
+     * The current traffic secret, which is set only for TLS 1.3
      */
-    @Value
-    public static class WriteCipherContext {
-        byte[] iv;
-        byte[] key;
-        byte[] salt;
-        byte[] recSeq;
+    public Optional<SecretKey> baseSecret() {
+        if (baseSecret == null) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.ofNullable((SecretKey) (Object) baseSecret.invokeExact(obj));
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 
-    @RequiredArgsConstructor
-    public enum WriteCipherType {
-        T12_GCM(new T12Gcm()),
-        ;
-        final WriteCipherContextExtractor extractor;
-
-        boolean isSupported(SSLWriteCipher cipher) {
-            return extractor.clazz.isInstance(cipher.obj);
+    public Optional<CipherContext> context() {
+        for (WriteCipherType type : WriteCipherType.values()) {
+            if (type.extractor.isSupported(obj)) {
+                return Optional.of(type.extractor.extract(obj, sequenceNumber()));
+            }
         }
+        return Optional.empty();
     }
 
     /**
-     * Extract {@link WriteCipherContext} from given cipher object
+     * Put the same information as {@link #context()} to the buffer in the layout of tls12_crypto_info_* struct
+     * following the header, without leaving the key on heap.
+     * @return false if the cipher is not supported, in which case nothing is written
      */
-    abstract static class WriteCipherContextExtractor {
-        final Class<?> clazz;
-        protected WriteCipherContextExtractor(Class<?> clazz) {
-            this.clazz = clazz;
-        }
-
-        abstract WriteCipherContext extract(SSLWriteCipher cipher);
-
-        static class T12Gcm extends WriteCipherContextExtractor {
-            private static final Class<?> clazz =
-                    classForName("sun.security.ssl.SSLCipher$T12GcmWriteCipherGenerator$GcmWriteCipher");
-            private static final Field key = getField(clazz, "key");
-            private static final Field fixedIv = getField(clazz, "fixedIv");
-
-            T12Gcm() {
-                super(clazz);
+    public boolean writeContext(ByteBuffer dst) {
+        for (WriteCipherType type : WriteCipherType.values()) {
+            if (type.extractor.isSupported(obj)) {
+                type.extractor.writeTo(obj, sequenceNumber(), dst);
+                return true;
             }
+        }
+        return false;
+    }
 
-            @Override
-            WriteCipherContext extract(SSLWriteCipher cipher) {
-                SecretKeySpec keySpec = (SecretKeySpec) doReflection(() -> key.get(cipher.obj));
-                byte[] salt = (byte[]) doReflection(() -> fixedIv.get(cipher.obj));
-                byte[] seq = cipher.authenticator().sequenceNumber();
+    public enum WriteCipherType {
+        T12_GCM("sun.security.ssl.SSLCipher$T12GcmWriteCipherGenerator$GcmWriteCipher",
+                "fixedIv", NonceLayout.EXPLICIT),
+        T13_GCM("sun.security.ssl.SSLCipher$T13GcmWriteCipherGenerator$GcmWriteCipher",
+                "iv", NonceLayout.SPLIT),
+        T12_CC20_P1305("sun.security.ssl.SSLCipher$T12CC20P1305WriteCipherGenerator$CC20P1305WriteCipher",
+                       "iv", NonceLayout.WHOLE),
+        T13_CC20_P1305("sun.security.ssl.SSLCipher$T13CC20P1305WriteCipherGenerator$CC20P1305WriteCipher",
+                       "iv", NonceLayout.WHOLE),
+        ;
+        final CipherContextExtractor extractor;
 
-                return new WriteCipherContext(seq, keySpec.getEncoded(), salt, seq);
-            }
+        WriteCipherType(String className, String nonceField, NonceLayout nonceLayout) {
+            extractor = new CipherContextExtractor(className, nonceField, nonceLayout);
         }
     }
 }
@@ -1,10 +1,10 @@
 package com.mayreh.jktls.sun.security.ssl;
 
 import static com.mayreh.jktls.reflection.Utils.classForName;
-import static com.mayreh.jktls.reflection.Utils.doReflection;
-import static com.mayreh.jktls.reflection.Utils.getField;
+import static com.mayreh.jktls.reflection.Utils.getterHandle;
+import static com.mayreh.jktls.reflection.Utils.propagate;
 
-import java.lang.reflect.Field;
+import java.lang.invoke.MethodHandle;
 
 import lombok.RequiredArgsConstructor;
 
@@ -14,11 +14,38 @@ import lombok.RequiredArgsConstructor;
 @RequiredArgsConstructor
 public class TransportContext {
     private static final Class<?> clazz = classForName("sun.security.ssl.TransportContext");
-    private static final Field outputRecord = getField(clazz, "outputRecord");
+    static final MethodHandle inputRecord = getterHandle(clazz, "inputRecord");
+    static final MethodHandle outputRecord = getterHandle(clazz, "outputRecord");
+    private static final MethodHandle handshakeContext = getterHandle(clazz, "handshakeContext");
 
     private final Object obj;
 
+    public InputRecord inputRecord() {
+        try {
+            return new InputRecord((Object) inputRecord.invokeExact(obj));
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
     public OutputRecord outputRecord() {
-        return new OutputRecord(doReflection(() -> outputRecord.get(obj)));
+        try {
+            return new OutputRecord((Object) outputRecord.invokeExact(obj));
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    /**
+     * Returns the context of the ongoing handshake, or null if no handshake is in progress
+     */
+    public HandshakeContext handshakeContext() {
+        Object context;
+        try {
+            context = (Object) handshakeContext.invokeExact(obj);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+        return context == null ? null : new HandshakeContext(context);
     }
 }
@@ -0,0 +1,44 @@
+package com.mayreh.jktls;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+    @Test
+    public void testSizeClass() {
+        BufferPool pool = new BufferPool(1);
+
+        ByteBuffer small = pool.acquire(1);
+        assertTrue(small.isDirect());
+        assertEquals(4096, small.capacity());
+        assertEquals(16384, pool.acquire(16384).capacity());
+        assertEquals(32768, pool.acquire(16385).capacity());
+
+        // Larger than the largest class
+        assertEquals(200000, pool.acquire(200000).capacity());
+    }
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool(1);
+
+        ByteBuffer first = pool.acquire(5000);
+        ByteBuffer second = pool.acquire(5000);
+        first.put((byte) 1);
+        pool.release(first);
+        // Beyond maxRetainedPerClass
+        pool.release(second);
+
+        ByteBuffer reused = pool.acquire(8192);
+        assertSame(first, reused);
+        assertEquals(0, reused.position());
+        assertEquals(reused.capacity(), reused.limit());
+        assertNotSame(second, pool.acquire(8192));
+    }
+}
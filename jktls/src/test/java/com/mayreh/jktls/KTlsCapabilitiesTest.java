@@ -0,0 +1,53 @@
+package com.mayreh.jktls;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+public class KTlsCapabilitiesTest {
+    @Test
+    public void testProbeIsCached() {
+        assertSame(KTlsCapabilities.probe(), KTlsCapabilities.probe());
+    }
+
+    @Test
+    public void testUnknownCipherSuite() {
+        KTlsCapabilities capabilities = KTlsCapabilities.probe();
+        assertFalse(capabilities.isSupported("TLSv1.3", "TLS_AES_128_CCM_8_SHA256"));
+        assertFalse(capabilities.isSupported("SSLv3", "TLS_AES_128_GCM_SHA256"));
+    }
+
+    @Test
+    public void testUnsupported() {
+        assertNothingSupported(KTlsCapabilities.UNSUPPORTED);
+    }
+
+    @Test
+    public void testNothingSupportedWithoutUlp() {
+        KTlsCapabilities capabilities = KTlsCapabilities.probe();
+        assumeFalse(capabilities.ulpSupported());
+        assertSame(KTlsCapabilities.UNSUPPORTED, capabilities);
+    }
+
+    @Test
+    public void testAesGcm128SupportedWithUlp() {
+        KTlsCapabilities capabilities = KTlsCapabilities.probe();
+        assumeTrue(capabilities.ulpSupported());
+        // Supported since the tls module was introduced
+        assertTrue(capabilities.isTxSupported("TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256"));
+    }
+
+    private static void assertNothingSupported(KTlsCapabilities capabilities) {
+        assertFalse(capabilities.ulpSupported());
+        for (CipherSuite suite : CipherSuite.values()) {
+            assertFalse(capabilities.isTxSupported(suite.version.protocol, suite.name()));
+            assertFalse(capabilities.isRxSupported(suite.version.protocol, suite.name()));
+            assertFalse(capabilities.isSupported(suite.name()));
+        }
+        assertFalse(capabilities.txZeroCopySupported());
+    }
+}
@@ -0,0 +1,96 @@
+package com.mayreh.jktls;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mayreh.jktls.testing.SslContexts;
+
+public class KTlsHandshakerTest {
+    private final SSLContext serverContext = SslContexts.server();
+    private final SSLContext clientContext = SslContexts.client("TLSv1.2");
+    private ServerSocketChannel server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test(timeout = 15000L)
+    public void testResumption() throws Exception {
+        assertFalse(handshake());
+        // The client offers the cached session, which the server finds in its session cache
+        assertTrue(handshake());
+    }
+
+    /**
+     * Accept a connection and perform the handshake by {@link KTlsHandshaker} without switching to kernel TLS
+     * @return whether the session was resumed
+     */
+    private boolean handshake() throws Exception {
+        InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+        CompletableFuture<Void> client = CompletableFuture.runAsync(() -> {
+            try (SSLSocket socket = (SSLSocket) clientContext.getSocketFactory()
+                                                             .createSocket(address.getAddress(),
+                                                                           address.getPort())) {
+                socket.startHandshake();
+                // Wait for the server to close the connection
+                socket.getInputStream().read();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        SSLEngine engine = serverContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        try (SocketChannel channel = server.accept();
+             Selector selector = Selector.open()) {
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, 0);
+            KTlsHandshaker handshaker = new KTlsHandshaker(channel, engine);
+            try {
+                while (true) {
+                    KTlsHandshaker.Status status = handshaker.advance();
+                    if (status == KTlsHandshaker.Status.FINISHED) {
+                        break;
+                    }
+                    assertTrue(status == KTlsHandshaker.Status.NEED_READ ||
+                               status == KTlsHandshaker.Status.NEED_WRITE);
+                    key.interestOps(status == KTlsHandshaker.Status.NEED_READ ? SelectionKey.OP_READ
+                                                                               : SelectionKey.OP_WRITE);
+                    selector.select();
+                    selector.selectedKeys().clear();
+                }
+                return handshaker.isResumed();
+            } finally {
+                handshaker.release();
+            }
+        } finally {
+            client.get(10, TimeUnit.SECONDS);
+            assertEquals("TLSv1.2", engine.getSession().getProtocol());
+        }
+    }
+}
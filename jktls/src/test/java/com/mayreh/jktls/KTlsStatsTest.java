@@ -0,0 +1,68 @@
+package com.mayreh.jktls;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class KTlsStatsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testKernelStats() throws Exception {
+        Path file = folder.newFile().toPath();
+        Files.write(file, Arrays.asList("TlsCurrTxSw                     3",
+                                        "TlsTxDevice                     0",
+                                        "TlsDecryptError                 12",
+                                        "malformed"));
+
+        Map<String, Long> stats = new KTlsStats(file).getKernelStats();
+        assertEquals(3, stats.size());
+        assertEquals(3L, (long) stats.get(KTlsStats.TLS_CURR_TX_SW));
+        assertEquals(0L, (long) stats.get(KTlsStats.TLS_TX_DEVICE));
+        assertEquals(12L, (long) stats.get(KTlsStats.TLS_DECRYPT_ERROR));
+    }
+
+    @Test
+    public void testKernelStatsWithoutTlsModule() {
+        assertTrue(new KTlsStats(folder.getRoot().toPath().resolve("missing")).getKernelStats().isEmpty());
+    }
+
+    @Test
+    public void testChannelStats() {
+        long totalWritten = KTlsChannelStats.TOTAL.bytesWritten();
+        KTlsChannelStats stats = new KTlsChannelStats();
+        stats.recordWrite(100, 100);
+        stats.recordWrite(100, 40);
+        stats.recordWrite(100, 0);
+        stats.recordUnavailable();
+
+        assertEquals(140, stats.bytesWritten());
+        assertEquals(2, stats.partialSends());
+        assertEquals(1, stats.unavailable());
+        assertEquals(totalWritten + 140, KTlsChannelStats.TOTAL.bytesWritten());
+    }
+
+    @Test
+    public void testHandshakeStats() {
+        KTlsHandshakeStats stats = new KTlsHandshakeStats();
+        assertEquals(0.0, stats.resumptionRate(), 0.0);
+
+        stats.recordHandshake(false);
+        stats.recordHandshake(true);
+        stats.recordHandshake(true);
+        stats.recordHandshake(true);
+
+        assertEquals(1, stats.fullHandshakes());
+        assertEquals(3, stats.resumedHandshakes());
+        assertEquals(0.75, stats.resumptionRate(), 0.0);
+    }
+}
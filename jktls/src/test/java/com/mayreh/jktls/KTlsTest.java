@@ -1,26 +1,63 @@
 package com.mayreh.jktls;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
 
 import com.mayreh.jktls.testing.KTlsServerClientRule;
+import com.mayreh.jktls.testing.SslContexts;
 
+@RunWith(Parameterized.class)
 public class KTlsTest {
     @Rule
     public TemporaryFolder folder = new TemporaryFolder();
     @Rule
-    public KTlsServerClientRule rule = new KTlsServerClientRule(new String[] {
-            "TLS_RSA_WITH_AES_128_GCM_SHA256"
-    });
+    public KTlsServerClientRule rule;
+    private final String protocol;
+
+    @Parameters(name = "{0}/{1}")
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][] {
+                { "TLSv1.2", "TLS_RSA_WITH_AES_128_GCM_SHA256" },
+                { "TLSv1.2", "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384" },
+                { "TLSv1.2", "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256" },
+                { "TLSv1.3", "TLS_AES_128_GCM_SHA256" },
+                { "TLSv1.3", "TLS_AES_256_GCM_SHA384" },
+                { "TLSv1.3", "TLS_CHACHA20_POLY1305_SHA256" },
+        });
+    }
+
+    public KTlsTest(String protocol, String cipherSuite) throws Exception {
+        // ChaCha20-Poly1305 is available only since JDK 12
+        assumeTrue(Arrays.asList(SSLContext.getDefault().getSupportedSSLParameters().getCipherSuites())
+                         .contains(cipherSuite));
+        rule = new KTlsServerClientRule(protocol, new String[] { cipherSuite });
+        this.protocol = protocol;
+    }
 
     @Test(timeout = 15000L)
     public void testEcho() {
@@ -34,6 +71,113 @@ public class KTlsTest {
         assertEquals("hello", rule.getClient().sendAndWaitReply("hello"));
     }
 
+    @Test(timeout = 15000L)
+    public void testPipelinedRightAfterHandshake() throws Exception {
+        rule.setHandler((channel, message) -> {
+            ByteBuffer buf = ByteBuffer.wrap(message);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        });
+
+        try (SSLSocket socket = (SSLSocket) SslContexts.client(protocol).getSocketFactory()
+                                                       .createSocket("localhost", rule.port())) {
+            // Sent without waiting for any reply, so these records likely arrive along with the handshake
+            OutputStream out = socket.getOutputStream();
+            out.write("first\n".getBytes(StandardCharsets.UTF_8));
+            out.write("second\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("first", reader.readLine());
+            assertEquals("second", reader.readLine());
+        }
+    }
+
+    @Test(timeout = 15000L)
+    public void testClientConnector() throws Exception {
+        rule.setHandler((channel, message) -> {
+            ByteBuffer buf = ByteBuffer.wrap(message);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        });
+
+        KTlsConnector connector = new KTlsConnector(SslContexts.client(protocol));
+        try (KTlsSocketChannel channel = connector.connect(new InetSocketAddress("localhost", rule.port()))) {
+            ByteBuffer request = ByteBuffer.wrap("hello\n".getBytes(StandardCharsets.UTF_8));
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+
+            // Post-handshake messages (e.g. TLS 1.3 NewSessionTicket) are skipped
+            ByteBuffer reply = ByteBuffer.allocate(6);
+            while (reply.hasRemaining()) {
+                assertTrue(channel.read(reply) >= 0);
+            }
+            assertEquals("hello\n", new String(reply.array(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test(timeout = 15000L)
+    public void testSocketFactory() throws Exception {
+        rule.setHandler((channel, message) -> {
+            ByteBuffer buf = ByteBuffer.wrap(message);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        });
+
+        KTlsSocketFactory factory = new KTlsSocketFactory(SslContexts.client(protocol));
+        try (Socket plain = KTlsSocketFactory.plainSocketFactory().createSocket("localhost", rule.port());
+             KTlsSocket socket = (KTlsSocket) factory.createSocket(plain, "localhost", rule.port(), true)) {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            assertTrue(socket.isKernelTls());
+            out.write("hello\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("hello", reader.readLine());
+        }
+    }
+
+    @Test(timeout = 15000L)
+    public void testSendCloseNotify() throws Exception {
+        rule.setHandler((channel, message) -> channel.sendCloseNotify());
+
+        try (SSLSocket socket = (SSLSocket) SslContexts.client(protocol).getSocketFactory()
+                                                       .createSocket("localhost", rule.port())) {
+            OutputStream out = socket.getOutputStream();
+            out.write("hello\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            // close_notify is seen as the end of stream
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    @Test(timeout = 15000L)
+    public void testNativeWrite() {
+        rule.setHandler((channel, message) -> {
+            channel.setNativeWriteEnabled(true);
+            ByteBuffer header = ByteBuffer.allocateDirect(4);
+            header.put("re: ".getBytes(StandardCharsets.UTF_8));
+            header.flip();
+            ByteBuffer body = ByteBuffer.allocateDirect(message.length);
+            body.put(message);
+            body.flip();
+            ByteBuffer[] srcs = { header, body };
+            while (header.hasRemaining() || body.hasRemaining()) {
+                channel.write(srcs);
+            }
+        });
+
+        assertEquals("re: hello", rule.getClient().sendAndWaitReply("hello"));
+    }
+
     @Test(timeout = 15000L)
     public void testSendfile() throws Exception {
         Path file = folder.newFile().toPath();
@@ -46,4 +190,62 @@ public class KTlsTest {
             assertEquals("sendfile!!", rule.getClient().sendAndWaitReply("hello"));
         }
     }
+
+    @Test(timeout = 30000L)
+    public void testSendfileLargerThanSocketBuffer() throws Exception {
+        Path file = folder.newFile().toPath();
+        byte[] content = new byte[8 * 1024 * 1024];
+        Arrays.fill(content, (byte) 'a');
+        content[content.length - 1] = '\n';
+        Files.write(file, content);
+        try (FileChannel fileChannel = FileChannel.open(file)) {
+            rule.setHandler((channel, message) -> {
+                // KTlsServer's channel is non-blocking so single call may transfer only part of the file
+                long position = 0;
+                while (position < fileChannel.size()) {
+                    position += channel.transferFrom(fileChannel, position, fileChannel.size() - position);
+                }
+            });
+
+            assertEquals(content.length - 1, rule.getClient().sendAndWaitReply("hello").length());
+        }
+    }
+
+    @Test(timeout = 30000L)
+    public void testFileTransfer() throws Exception {
+        Path file = folder.newFile().toPath();
+        byte[] content = new byte[8 * 1024 * 1024];
+        Arrays.fill(content, (byte) 'b');
+        content[content.length - 1] = '\n';
+        Files.write(file, content);
+        try (FileChannel fileChannel = FileChannel.open(file)) {
+            rule.setHandler((channel, message) -> {
+                // The rest of the file is sent on OP_WRITE readiness
+                rule.getServer().transfer(channel, fileChannel, 0, fileChannel.size());
+            });
+
+            assertEquals(content.length - 1, rule.getClient().sendAndWaitReply("hello").length());
+        }
+    }
+
+    @Test(timeout = 15000L)
+    public void testSpliceFromPipe() throws Exception {
+        Pipe pipe = Pipe.open();
+        try (Pipe.SinkChannel sink = pipe.sink();
+             Pipe.SourceChannel source = pipe.source()) {
+            rule.setHandler((channel, message) -> {
+                ByteBuffer buf = ByteBuffer.wrap("spliced!!\n".getBytes(StandardCharsets.UTF_8));
+                int length = buf.remaining();
+                while (buf.hasRemaining()) {
+                    sink.write(buf);
+                }
+                long transferred = 0;
+                while (transferred < length) {
+                    transferred += channel.transferFrom(source, length - transferred);
+                }
+            });
+
+            assertEquals("spliced!!", rule.getClient().sendAndWaitReply("hello"));
+        }
+    }
 }
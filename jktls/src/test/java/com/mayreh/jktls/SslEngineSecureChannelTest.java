@@ -0,0 +1,193 @@
+package com.mayreh.jktls;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mayreh.jktls.testing.SslContexts;
+
+public class SslEngineSecureChannelTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SSLSocket client;
+    private SocketChannel channel;
+    private SecureChannel server;
+
+    @Before
+    public void setUp() throws Exception {
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress("localhost", 0));
+            client = (SSLSocket) SslContexts.client("TLSv1.3").getSocketFactory().createSocket(
+                    "localhost", ((InetSocketAddress) listener.getLocalAddress()).getPort());
+            // Sent right after the handshake, which the server may read along with the handshake messages
+            CompletableFuture<Void> clientWrite = CompletableFuture.runAsync(() -> {
+                try {
+                    OutputStream out = client.getOutputStream();
+                    out.write("first\n".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            channel = listener.accept();
+            SSLEngine engine = SslContexts.server().createSSLEngine();
+            engine.setUseClientMode(false);
+            ByteBuffer netIn = handshake(channel, engine);
+            clientWrite.join();
+            netIn.flip();
+            server = new SslEngineSecureChannel(channel, engine, netIn, null);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        client.close();
+    }
+
+    @Test(timeout = 15000L)
+    public void testEcho() throws Exception {
+        assertFalse(server.isKernelTls());
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        while (buffer.position() < "first\n".length()) {
+            server.read(buffer);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            server.write(buffer);
+        }
+        assertEquals("first", reader.readLine());
+    }
+
+    @Test(timeout = 30000L)
+    public void testTransferFrom() throws Exception {
+        Path file = folder.newFile().toPath();
+        byte[] content = new byte[1024 * 1024];
+        Arrays.fill(content, (byte) 'a');
+        content[content.length - 1] = '\n';
+        Files.write(file, content);
+        try (FileChannel fileChannel = FileChannel.open(file)) {
+            assertEquals(content.length, server.transferFrom(fileChannel, 0, fileChannel.size()));
+        }
+
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+        assertEquals(content.length - 1, reader.readLine().length());
+    }
+
+    @Test(timeout = 30000L)
+    public void testNonBlockingWrite() throws Exception {
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, 16 * 1024);
+        channel.configureBlocking(false);
+        byte[] content = new byte[32 * 1024 * 1024];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+
+        // The client doesn't read yet, so the write blocks at some point
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        while (buffer.hasRemaining() && server.write(buffer) > 0) {
+            // Continue until the channel would block
+        }
+        assertTrue(buffer.hasRemaining());
+        int written = buffer.position();
+
+        CompletableFuture<byte[]> clientRead = CompletableFuture.supplyAsync(() -> {
+            byte[] received = new byte[written];
+            try {
+                new DataInputStream(client.getInputStream()).readFully(received);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return received;
+        });
+        try (Selector selector = Selector.open()) {
+            channel.register(selector, SelectionKey.OP_WRITE);
+            while (!server.flush()) {
+                selector.select();
+                selector.selectedKeys().clear();
+            }
+        }
+        assertArrayEquals(Arrays.copyOf(content, written), clientRead.get());
+    }
+
+    /**
+     * Perform the handshake over the blocking channel
+     * @return data read from the channel which is not unwrapped yet, in write mode
+     */
+    private static ByteBuffer handshake(SocketChannel channel, SSLEngine engine) throws Exception {
+        ByteBuffer netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        ByteBuffer netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        ByteBuffer appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        engine.beginHandshake();
+        HandshakeStatus status = engine.getHandshakeStatus();
+        while (status != HandshakeStatus.FINISHED && status != HandshakeStatus.NOT_HANDSHAKING) {
+            switch (status) {
+                case NEED_WRAP:
+                    netOut.clear();
+                    status = engine.wrap(ByteBuffer.allocate(0), netOut).getHandshakeStatus();
+                    netOut.flip();
+                    while (netOut.hasRemaining()) {
+                        channel.write(netOut);
+                    }
+                    break;
+                case NEED_UNWRAP:
+                    netIn.flip();
+                    SSLEngineResult result = engine.unwrap(netIn, appIn);
+                    netIn.compact();
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        channel.read(netIn);
+                    }
+                    status = engine.getHandshakeStatus();
+                    break;
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    status = engine.getHandshakeStatus();
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected handshake status: " + status);
+            }
+        }
+        return netIn;
+    }
+}
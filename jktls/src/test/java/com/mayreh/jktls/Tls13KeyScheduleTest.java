@@ -0,0 +1,26 @@
+package com.mayreh.jktls;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+public class Tls13KeyScheduleTest {
+    @Test
+    public void testHkdfExpandLabel() {
+        // Server handshake traffic keys in RFC 8448 Section 3
+        byte[] secret = hex("b67b7d690cc16c4e75e54213cb2d37b4e9c912bcded9105d42befd59d391ad38");
+
+        assertArrayEquals(hex("3fce516009c21727d0f2e4e86ee403bc"),
+                          Tls13KeySchedule.hkdfExpandLabel("HmacSHA256", secret, "key", 16));
+        assertArrayEquals(hex("5d313eb2671276ee13000b30"),
+                          Tls13KeySchedule.hkdfExpandLabel("HmacSHA256", secret, "iv", 12));
+    }
+
+    private static byte[] hex(String s) {
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
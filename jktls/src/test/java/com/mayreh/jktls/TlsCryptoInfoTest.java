@@ -0,0 +1,160 @@
+package com.mayreh.jktls;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.mayreh.jktls.testing.SslContexts;
+
+@RunWith(Parameterized.class)
+public class TlsCryptoInfoTest {
+    private final String protocol;
+
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][] {
+                { "TLSv1.2" },
+                { "TLSv1.3" },
+        });
+    }
+
+    public TlsCryptoInfoTest(String protocol) {
+        this.protocol = protocol;
+    }
+
+    @Test
+    public void testDirectionInClientMode() throws Exception {
+        SSLEngine client = SslContexts.client(protocol).createSSLEngine("localhost", 443);
+        client.setUseClientMode(true);
+        SSLEngine server = SslContexts.server().createSSLEngine();
+        server.setUseClientMode(false);
+        handshake(client, server);
+
+        assertSameKeys(TlsCryptoInfo.from(client), TlsCryptoInfo.forRead(server));
+        assertSameKeys(TlsCryptoInfo.from(server), TlsCryptoInfo.forRead(client));
+        assertFalse(Arrays.equals(TlsCryptoInfo.from(client).key(), TlsCryptoInfo.from(server).key()));
+    }
+
+    @Test
+    public void testResumedHandshake() throws Exception {
+        SSLContext clientContext = SslContexts.client(protocol);
+        SSLContext serverContext = SslContexts.server();
+        SSLEngine client = clientContext.createSSLEngine("localhost", 443);
+        client.setUseClientMode(true);
+        SSLEngine server = serverContext.createSSLEngine();
+        server.setUseClientMode(false);
+        handshake(client, server);
+        TlsCryptoInfo initial = TlsCryptoInfo.from(server);
+
+        long start = System.currentTimeMillis();
+        // Wait for the clock to advance so that the resumed session is told by its creation time
+        while (System.currentTimeMillis() == start) {
+            Thread.sleep(1);
+        }
+        client = clientContext.createSSLEngine("localhost", 443);
+        client.setUseClientMode(true);
+        server = serverContext.createSSLEngine();
+        server.setUseClientMode(false);
+        handshake(client, server);
+
+        assertTrue(server.getSession().getCreationTime() < start);
+        assertSameKeys(TlsCryptoInfo.from(client), TlsCryptoInfo.forRead(server));
+        assertSameKeys(TlsCryptoInfo.from(server), TlsCryptoInfo.forRead(client));
+        // Abbreviated handshakes still derive fresh keys
+        assertFalse(Arrays.equals(initial.key(), TlsCryptoInfo.from(server).key()));
+    }
+
+    @Test
+    public void testOffHeapCryptoInfo() throws Exception {
+        SSLEngine client = SslContexts.client(protocol).createSSLEngine("localhost", 443);
+        client.setUseClientMode(true);
+        SSLEngine server = SslContexts.server().createSSLEngine();
+        server.setUseClientMode(false);
+        handshake(client, server);
+
+        ByteBuffer expected;
+        try (CryptoInfoBuffer buffer = CryptoInfoBuffer.acquire()) {
+            buffer.put(TlsCryptoInfo.from(server));
+            buffer.put(TlsCryptoInfo.forRead(server));
+            expected = ByteBuffer.allocate(CryptoInfoBuffer.CAPACITY).put(buffer.contents());
+        }
+        expected.flip();
+        CryptoInfoBuffer released;
+        try (CryptoInfoBuffer buffer = CryptoInfoBuffer.acquire()) {
+            CipherType txType = buffer.putWriteKeys(server);
+            CipherType rxType = buffer.putReadKeys(server);
+            assertEquals(txType.infoSize() + rxType.infoSize(), buffer.contents().remaining());
+            assertEquals(expected, buffer.contents());
+            released = buffer;
+        }
+        ByteBuffer wiped = released.contents();
+        wiped.limit(wiped.capacity());
+        while (wiped.hasRemaining()) {
+            assertEquals(0, wiped.get());
+        }
+    }
+
+    private static void assertSameKeys(TlsCryptoInfo expected, TlsCryptoInfo actual) {
+        assertArrayEquals(expected.iv(), actual.iv());
+        assertArrayEquals(expected.key(), actual.key());
+        assertArrayEquals(expected.salt(), actual.salt());
+        assertArrayEquals(expected.recSeq(), actual.recSeq());
+    }
+
+    /**
+     * Handshake in memory until both engines have consumed all messages including post-handshake ones
+     */
+    private static void handshake(SSLEngine client, SSLEngine server) throws Exception {
+        ByteBuffer clientToServer = ByteBuffer.allocate(client.getSession().getPacketBufferSize());
+        ByteBuffer serverToClient = ByteBuffer.allocate(server.getSession().getPacketBufferSize());
+        ByteBuffer app = ByteBuffer.allocate(client.getSession().getApplicationBufferSize());
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        client.beginHandshake();
+        server.beginHandshake();
+
+        while (isHandshaking(client) || isHandshaking(server) ||
+               clientToServer.position() > 0 || serverToClient.position() > 0) {
+            runTasks(client);
+            runTasks(server);
+            if (client.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                client.wrap(empty, clientToServer);
+            }
+            if (server.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                server.wrap(empty, serverToClient);
+            }
+            clientToServer.flip();
+            server.unwrap(clientToServer, app);
+            clientToServer.compact();
+            app.clear();
+            serverToClient.flip();
+            client.unwrap(serverToClient, app);
+            serverToClient.compact();
+            app.clear();
+        }
+    }
+
+    private static boolean isHandshaking(SSLEngine engine) {
+        return engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    private static void runTasks(SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.mayreh.jktls;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mayreh.jktls.testing.TlsClient;
+import com.mayreh.jktls.testing.VirtualThreadKTlsServer;
+
+public class VirtualThreadTest {
+    private static final String CIPHER_SUITE = "TLS_RSA_WITH_AES_128_GCM_SHA256";
+
+    private VirtualThreadKTlsServer server;
+    private final List<TlsClient> clients = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        assumeTrue(VirtualThreads.isSupported());
+        assumeTrue(KTlsCapabilities.probe().isSupported("TLSv1.2", CIPHER_SUITE));
+
+        server = new VirtualThreadKTlsServer(0, new String[] { CIPHER_SUITE });
+        server.setHandler((channel, message) -> {
+            ByteBuffer buf = ByteBuffer.wrap(message);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        clients.forEach(TlsClient::close);
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test(timeout = 30000L)
+    public void testIdleConnectionsMoreThanCarriers() {
+        // Carrier threads default to the number of processors.
+        // Connection threads waiting for data in readRecord must not pin them, otherwise no carrier is left
+        // for the last connection
+        int idleConnections = Runtime.getRuntime().availableProcessors() + 4;
+        for (int i = 0; i < idleConnections; i++) {
+            TlsClient client = new TlsClient("localhost", server.getPort());
+            clients.add(client);
+            // Ensure that the connection thread has gone through the handshake and waits for the next record
+            assertEquals("idle-" + i, client.sendAndWaitReply("idle-" + i));
+        }
+
+        TlsClient client = new TlsClient("localhost", server.getPort());
+        clients.add(client);
+        assertEquals("hello", client.sendAndWaitReply("hello"));
+    }
+}
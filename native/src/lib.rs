@@ -1,8 +1,11 @@
 use jni::objects::{JClass, JString};
-use jni::sys::{jbyteArray, jint, jlong};
+use jni::sys::{jbyte, jint, jlong};
 use jni::JNIEnv;
 use nix::errno::Errno;
-use nix::libc::{c_int, c_void, setsockopt};
+use nix::libc::{
+    c_int, c_void, cmsghdr, iovec, msghdr, recvmsg, sendmsg, setsockopt, writev, CMSG_DATA,
+    CMSG_FIRSTHDR, CMSG_LEN, CMSG_NXTHDR, CMSG_SPACE,
+};
 use std::mem::size_of;
 
 const SOCKET_EXCEPTION_CLASS: &str = "java/net/SocketException";
@@ -13,6 +16,21 @@ const SOL_TCP: c_int = 6;
 const SOL_TLS: c_int = 282;
 const TCP_ULP: c_int = 31;
 const TLS_TX: c_int = 1;
+const TLS_RX: c_int = 2;
+// Size of struct tls_crypto_info, which consists of u16 version and u16 cipher_type
+const TLS_CRYPTO_INFO_HEADER_SIZE: usize = 4;
+
+// cmsg types at SOL_TLS level
+const TLS_SET_RECORD_TYPE: c_int = 1;
+const TLS_GET_RECORD_TYPE: c_int = 2;
+const TLS_RECORD_TYPE_DATA: u8 = 23;
+
+// Large enough to hold a cmsg with 1-byte data, and aligned for cmsghdr
+type CmsgBuffer = [u64; 4];
+
+// Return values of IO operations which follow sun.nio.ch.IOStatus
+const IOS_UNAVAILABLE: jlong = -2;
+const IOS_INTERRUPTED: jlong = -3;
 
 #[derive(Debug, Eq, PartialEq)]
 enum KTlsError {
@@ -21,93 +39,70 @@ enum KTlsError {
     IllegalArgument { msg: String },
 }
 
-#[repr(u16)]
-#[derive(Copy, Clone, Debug, Eq, PartialEq)]
-enum TlsVersion {
-    Tls12 = 0x0303,
-}
-
 #[repr(u16)]
 #[derive(Copy, Clone, Debug, Eq, PartialEq)]
 enum CipherType {
     AesGcm128 = 51,
+    AesGcm256 = 52,
+    Chacha20Poly1305 = 54,
 }
 
-#[repr(C)]
+/// Size of each field of tls12_crypto_info_* struct.
 #[derive(Copy, Clone, Debug, Eq, PartialEq)]
-struct TlsCryptoInfo {
-    version: TlsVersion,
-    cipher_type: CipherType,
+struct CryptoLayout {
+    iv: usize,
+    key: usize,
+    salt: usize,
+    rec_seq: usize,
 }
 
-impl TlsCryptoInfo {
-    fn new(protocol: &str, cipher_suite: &str) -> Result<Self, KTlsError> {
-        match (protocol, cipher_suite) {
-            ("TLSv1.2", "TLS_RSA_WITH_AES_128_GCM_SHA256") => Ok(Self {
-                version: TlsVersion::Tls12,
-                cipher_type: CipherType::AesGcm128,
-            }),
+impl CipherType {
+    /// Look up by the kernel's cipher type number, which is also used as the cipher id on Java side.
+    fn from_id(id: jint) -> Result<Self, KTlsError> {
+        match id {
+            51 => Ok(CipherType::AesGcm128),
+            52 => Ok(CipherType::AesGcm256),
+            54 => Ok(CipherType::Chacha20Poly1305),
             _ => Err(KTlsError::UnsupportedOperation {
-                msg: format!(
-                    "Unsupported: protocol={}, cipherSuite={}",
-                    protocol, cipher_suite
-                ),
+                msg: format!("Unsupported cipher type: {}", id),
             }),
         }
     }
-}
 
-#[repr(C)]
-#[derive(Copy, Clone, Debug, Eq, PartialEq)]
-struct TlsCryptVectors<const I: usize, const K: usize, const S: usize, const R: usize> {
-    info: TlsCryptoInfo,
-    iv: [u8; I],
-    key: [u8; K],
-    salt: [u8; S],
-    rec_seq: [u8; R],
-}
+    /// Size of the whole tls12_crypto_info_* struct including the header.
+    fn info_size(self) -> usize {
+        let layout = self.layout();
+        TLS_CRYPTO_INFO_HEADER_SIZE + layout.iv + layout.key + layout.salt + layout.rec_seq
+    }
 
-impl<const I: usize, const K: usize, const S: usize, const R: usize> TlsCryptVectors<I, K, S, R> {
-    fn new(
-        info: TlsCryptoInfo,
-        iv: Vec<u8>,
-        key: Vec<u8>,
-        salt: Vec<u8>,
-        rec_seq: Vec<u8>,
-    ) -> Result<Self, KTlsError> {
-        let iv = iv.try_into().map_err(|_| KTlsError::IllegalArgument {
-            msg: "invalid iv".to_string(),
-        })?;
-        let key = key.try_into().map_err(|_| KTlsError::IllegalArgument {
-            msg: "invalid key".to_string(),
-        })?;
-        let salt = salt.try_into().map_err(|_| KTlsError::IllegalArgument {
-            msg: "invalid salt".to_string(),
-        })?;
-        let rec_seq = rec_seq.try_into().map_err(|_| KTlsError::IllegalArgument {
-            msg: "invalid rec_seq".to_string(),
-        })?;
-        Ok(Self {
-            info,
-            iv,
-            key,
-            salt,
-            rec_seq,
-        })
+    fn layout(self) -> CryptoLayout {
+        match self {
+            CipherType::AesGcm128 => CryptoLayout {
+                iv: 8,
+                key: 16,
+                salt: 4,
+                rec_seq: 8,
+            },
+            CipherType::AesGcm256 => CryptoLayout {
+                iv: 8,
+                key: 32,
+                salt: 4,
+                rec_seq: 8,
+            },
+            CipherType::Chacha20Poly1305 => CryptoLayout {
+                iv: 12,
+                key: 32,
+                salt: 0,
+                rec_seq: 8,
+            },
+        }
     }
 }
 
-type Tls12AesGcm128 = TlsCryptVectors<8, 16, 4, 8>;
-
 fn expect_string(env: &JNIEnv, obj: JString) -> String {
     env.get_string(obj).expect("Failed to get JavaStr").into()
 }
 
-fn expect_byte_array(env: &JNIEnv, obj: jbyteArray) -> Vec<u8> {
-    env.convert_byte_array(obj)
-        .expect("Failed to convert to vec")
-}
-
 fn maybe_throw<T>(env: JNIEnv, res: &Result<T, KTlsError>) {
     if let Err(e) = res {
         let (class, msg) = match e {
@@ -119,6 +114,20 @@ fn maybe_throw<T>(env: JNIEnv, res: &Result<T, KTlsError>) {
     }
 }
 
+/// Convert the result of an IO syscall into the count of processed bytes.
+/// EAGAIN and EINTR are reported as IOStatus codes instead of exceptions so that
+/// the caller can return partial progress on non-blocking sockets.
+fn io_status(res: nix::Result<usize>, op: &str) -> Result<jlong, KTlsError> {
+    match res {
+        Ok(n) => Ok(n as jlong),
+        Err(Errno::EAGAIN) => Ok(IOS_UNAVAILABLE),
+        Err(Errno::EINTR) => Ok(IOS_INTERRUPTED),
+        Err(e) => Err(KTlsError::Socket {
+            msg: format!("Failed to {}: {}", op, e),
+        }),
+    }
+}
+
 #[no_mangle]
 pub extern "system" fn Java_com_mayreh_jktls_KTlsSocketChannel_setTcpUlp(
     env: JNIEnv,
@@ -130,7 +139,10 @@ pub extern "system" fn Java_com_mayreh_jktls_KTlsSocketChannel_setTcpUlp(
 }
 
 fn set_tcp_ulp(env: JNIEnv, fd: jint, name: JString) -> Result<(), KTlsError> {
-    let name = expect_string(&env, name);
+    tcp_ulp(fd, &expect_string(&env, name))
+}
+
+fn tcp_ulp(fd: jint, name: &str) -> Result<(), KTlsError> {
     Errno::result(unsafe {
         setsockopt(
             fd,
@@ -146,60 +158,83 @@ fn set_tcp_ulp(env: JNIEnv, fd: jint, name: JString) -> Result<(), KTlsError> {
     })
 }
 
+fn set_tls_option(
+    fd: jint,
+    opt_name: c_int,
+    opt_label: &str,
+    value: *const c_void,
+    len: usize,
+) -> Result<(), KTlsError> {
+    let ret = unsafe { setsockopt(fd, SOL_TLS, opt_name, value, len as u32) };
+    Errno::result(ret).map(drop).map_err(|e| KTlsError::Socket {
+        msg: format!("Failed to set {}: {}", opt_label, e),
+    })
+}
+
 #[no_mangle]
-pub extern "system" fn Java_com_mayreh_jktls_KTlsSocketChannel_setTlsTx(
+pub extern "system" fn Java_com_mayreh_jktls_KTlsSocketChannel_setCryptoInfo(
     env: JNIEnv,
     _class: JClass,
     fd: jint,
-    protocol: JString,
-    cipher_suite: JString,
-    iv: jbyteArray,
-    key: jbyteArray,
-    salt: jbyteArray,
-    rec_seq: jbyteArray,
+    opt_name: jint,
+    address: jlong,
+    cipher: jint,
 ) {
-    maybe_throw(
-        env,
-        &set_tls_tx(env, fd, protocol, cipher_suite, iv, key, salt, rec_seq),
-    )
+    maybe_throw(env, &set_crypto_info(fd, opt_name, address, cipher));
 }
 
-#[allow(clippy::too_many_arguments)]
-fn set_tls_tx(
-    env: JNIEnv,
+/// Set the crypto info for either direction (TLS_TX or TLS_RX).
+/// `address` points to tls12_crypto_info_* struct which is laid out by the caller,
+/// and its size is determined by the cipher id.
+/// The struct is passed to the kernel as is, so the key material is never copied on this side.
+fn set_crypto_info(
     fd: jint,
-    protocol: JString,
-    cipher_suite: JString,
-    iv: jbyteArray,
-    key: jbyteArray,
-    salt: jbyteArray,
-    rec_seq: jbyteArray,
+    opt_name: c_int,
+    address: jlong,
+    cipher: jint,
 ) -> Result<(), KTlsError> {
-    let protocol = expect_string(&env, protocol);
-    let cipher_suite = expect_string(&env, cipher_suite);
-    let info = TlsCryptoInfo::new(&protocol, &cipher_suite)?;
-    let [iv, key, salt, rec_seq] = [iv, key, salt, rec_seq].map(|a| expect_byte_array(&env, a));
-
-    let ret = match info {
-        TlsCryptoInfo {
-            version: TlsVersion::Tls12,
-            cipher_type: CipherType::AesGcm128,
-        } => {
-            let v = Tls12AesGcm128::new(info, iv, key, salt, rec_seq)?;
-            unsafe {
-                setsockopt(
-                    fd,
-                    SOL_TLS,
-                    TLS_TX,
-                    (&v as *const Tls12AesGcm128) as *const c_void,
-                    size_of::<Tls12AesGcm128>() as u32,
-                )
-            }
+    let opt_label = match opt_name {
+        TLS_TX => "TLS_TX",
+        TLS_RX => "TLS_RX",
+        _ => {
+            return Err(KTlsError::IllegalArgument {
+                msg: format!("Unknown crypto info option: {}", opt_name),
+            })
         }
     };
-    Errno::result(ret).map(drop).map_err(|e| KTlsError::Socket {
-        msg: format!("Failed to set TLS_TX: {}", e),
-    })
+    let size = CipherType::from_id(cipher)?.info_size();
+    set_tls_option(fd, opt_name, opt_label, address as *const c_void, size)
+}
+
+#[no_mangle]
+pub extern "system" fn Java_com_mayreh_jktls_KTlsSocketChannel_enable(
+    env: JNIEnv,
+    _class: JClass,
+    fd: jint,
+    address: jlong,
+    tx_cipher: jint,
+    rx_cipher: jint,
+) {
+    maybe_throw(env, &enable(fd, address, tx_cipher, rx_cipher));
+}
+
+/// Install TLS ULP and set the crypto info of both directions in a single native call.
+/// `address` points to tls12_crypto_info_* structs which are packed back to back (TX followed by RX)
+/// by the caller, and their sizes are determined by the cipher ids.
+/// `rx_cipher` 0 means TLS_RX is not set.
+fn enable(fd: jint, address: jlong, tx_cipher: jint, rx_cipher: jint) -> Result<(), KTlsError> {
+    let tx_size = CipherType::from_id(tx_cipher)?.info_size();
+    let rx_size = match rx_cipher {
+        0 => None,
+        id => Some(CipherType::from_id(id)?.info_size()),
+    };
+    tcp_ulp(fd, "tls")?;
+    set_tls_option(fd, TLS_TX, "TLS_TX", address as *const c_void, tx_size)?;
+    if let Some(size) = rx_size {
+        let rx_address = (address as usize + tx_size) as *const c_void;
+        set_tls_option(fd, TLS_RX, "TLS_RX", rx_address, size)?;
+    }
+    Ok(())
 }
 
 #[no_mangle]
@@ -225,11 +260,10 @@ fn send_file(
     count: jlong,
 ) -> Result<jlong, KTlsError> {
     #[cfg(target_os = "linux")]
-    let res = nix::sys::sendfile::sendfile64(out_fd, in_fd, Some(&mut position), count as usize)
-        .map(|c| c as jlong)
-        .map_err(|e| KTlsError::Socket {
-            msg: format!("Failed to sendfile: {}", e),
-        });
+    let res = io_status(
+        nix::sys::sendfile::sendfile64(out_fd, in_fd, Some(&mut position), count as usize),
+        "sendfile",
+    );
     #[cfg(not(target_os = "linux"))]
     let res = Err(KTlsError::UnsupportedOperation {
         msg: "Currently only linux is supported".to_string(),
@@ -238,48 +272,249 @@ fn send_file(
     res
 }
 
-#[cfg(test)]
-mod tests {
-    use crate::{CipherType, Tls12AesGcm128, TlsCryptoInfo, TlsVersion};
+#[no_mangle]
+pub extern "system" fn Java_com_mayreh_jktls_KTlsSocketChannel_writev(
+    env: JNIEnv,
+    _class: JClass,
+    fd: jint,
+    iov_address: jlong,
+    iov_count: jint,
+) -> jlong {
+    let res = write_vectored(fd, iov_address, iov_count);
+    maybe_throw(env, &res);
+    res.unwrap_or(-1)
+}
 
-    #[test]
-    fn new_crypt_info_success() {
-        assert_eq!(
-            TlsCryptoInfo::new("TLSv1.2", "TLS_RSA_WITH_AES_128_GCM_SHA256"),
-            Ok(TlsCryptoInfo {
-                version: TlsVersion::Tls12,
-                cipher_type: CipherType::AesGcm128,
-            })
-        )
+/// Write the buffers described by `struct iovec[]` at `iov_address`.
+/// Since the caller passes the addresses of direct buffers, no copy happens between JVM and native.
+fn write_vectored(fd: jint, iov_address: jlong, iov_count: jint) -> Result<jlong, KTlsError> {
+    let ret = unsafe { writev(fd, iov_address as *const iovec, iov_count) };
+    io_status(Errno::result(ret).map(|n| n as usize), "writev")
+}
+
+#[no_mangle]
+pub extern "system" fn Java_com_mayreh_jktls_KTlsSocketChannel_sendRecord(
+    env: JNIEnv,
+    _class: JClass,
+    fd: jint,
+    record_type: jbyte,
+    address: jlong,
+    length: jint,
+) -> jlong {
+    let res = send_record(fd, record_type as u8, address, length);
+    maybe_throw(env, &res);
+    res.unwrap_or(-1)
+}
+
+/// Send the buffer at `address` as a record of the given type by attaching TLS_SET_RECORD_TYPE cmsg.
+fn send_record(fd: jint, record_type: u8, address: jlong, length: jint) -> Result<jlong, KTlsError> {
+    let mut iov = iovec {
+        iov_base: address as *mut c_void,
+        iov_len: length as usize,
+    };
+    let mut control: CmsgBuffer = [0; 4];
+    let ret = unsafe {
+        let mut msg: msghdr = std::mem::zeroed();
+        msg.msg_iov = &mut iov;
+        msg.msg_iovlen = 1;
+        msg.msg_control = control.as_mut_ptr() as *mut c_void;
+        msg.msg_controllen = CMSG_SPACE(size_of::<u8>() as u32) as _;
+
+        let cmsg: *mut cmsghdr = CMSG_FIRSTHDR(&msg);
+        (*cmsg).cmsg_level = SOL_TLS;
+        (*cmsg).cmsg_type = TLS_SET_RECORD_TYPE;
+        (*cmsg).cmsg_len = CMSG_LEN(size_of::<u8>() as u32) as _;
+        *CMSG_DATA(cmsg) = record_type;
+
+        sendmsg(fd, &msg, 0)
+    };
+    io_status(Errno::result(ret).map(|n| n as usize), "sendmsg")
+}
+
+#[no_mangle]
+pub extern "system" fn Java_com_mayreh_jktls_KTlsSocketChannel_recvRecord(
+    env: JNIEnv,
+    _class: JClass,
+    fd: jint,
+    address: jlong,
+    length: jint,
+) -> jlong {
+    let res = recv_record(fd, address, length);
+    maybe_throw(env, &res);
+    res.unwrap_or(-1)
+}
+
+/// Receive into the buffer at `address` and return the count packed with the record type
+/// given by TLS_GET_RECORD_TYPE cmsg, which the kernel attaches once a control buffer is supplied.
+/// Negative IOStatus codes are returned as is.
+fn recv_record(fd: jint, address: jlong, length: jint) -> Result<jlong, KTlsError> {
+    let mut iov = iovec {
+        iov_base: address as *mut c_void,
+        iov_len: length as usize,
+    };
+    let mut control: CmsgBuffer = [0; 4];
+    let mut msg: msghdr = unsafe { std::mem::zeroed() };
+    msg.msg_iov = &mut iov;
+    msg.msg_iovlen = 1;
+    msg.msg_control = control.as_mut_ptr() as *mut c_void;
+    msg.msg_controllen = size_of::<CmsgBuffer>() as _;
+
+    let ret = unsafe { recvmsg(fd, &mut msg, 0) };
+    let n = io_status(Errno::result(ret).map(|n| n as usize), "recvmsg")?;
+    if n < 0 {
+        return Ok(n);
     }
 
+    let mut record_type = TLS_RECORD_TYPE_DATA;
+    unsafe {
+        let mut cmsg = CMSG_FIRSTHDR(&msg);
+        while !cmsg.is_null() {
+            if (*cmsg).cmsg_level == SOL_TLS && (*cmsg).cmsg_type == TLS_GET_RECORD_TYPE {
+                record_type = *CMSG_DATA(cmsg);
+            }
+            cmsg = CMSG_NXTHDR(&msg, cmsg);
+        }
+    }
+    Ok(pack_record_result(record_type, n))
+}
+
+/// Pack the record type into upper 32 bits of the count so that both are returned by single jlong.
+fn pack_record_result(record_type: u8, n: jlong) -> jlong {
+    ((record_type as jlong) << 32) | (n & 0xffff_ffff)
+}
+
+#[no_mangle]
+pub extern "system" fn Java_com_mayreh_jktls_KTlsSocketChannel_setTlsIntOption(
+    env: JNIEnv,
+    _class: JClass,
+    fd: jint,
+    opt_name: jint,
+    value: jint,
+) {
+    let ret = unsafe {
+        setsockopt(
+            fd,
+            SOL_TLS,
+            opt_name,
+            (&value as *const jint) as *const c_void,
+            size_of::<jint>() as u32,
+        )
+    };
+    let res = Errno::result(ret).map(drop).map_err(|e| KTlsError::Socket {
+        msg: format!("Failed to set SOL_TLS option {}: {}", opt_name, e),
+    });
+    maybe_throw(env, &res);
+}
+
+#[no_mangle]
+pub extern "system" fn Java_com_mayreh_jktls_KTlsSocketChannel_splice(
+    env: JNIEnv,
+    _class: JClass,
+    in_fd: jint,
+    out_fd: jint,
+    count: jlong,
+) -> jlong {
+    let res = splice(in_fd, out_fd, count);
+    maybe_throw(env, &res);
+    res.unwrap_or(-1)
+}
+
+/// Splice with SPLICE_F_NONBLOCK so that the pipe side never blocks, which reports EAGAIN instead.
+/// Whether the socket side blocks follows O_NONBLOCK of the socket.
+#[allow(unused_variables)]
+fn splice(in_fd: jint, out_fd: jint, count: jlong) -> Result<jlong, KTlsError> {
+    #[cfg(target_os = "linux")]
+    let res = io_status(
+        nix::fcntl::splice(
+            in_fd,
+            None,
+            out_fd,
+            None,
+            count as usize,
+            nix::fcntl::SpliceFFlags::SPLICE_F_MOVE | nix::fcntl::SpliceFFlags::SPLICE_F_NONBLOCK,
+        ),
+        "splice",
+    );
+    #[cfg(not(target_os = "linux"))]
+    let res = Err(KTlsError::UnsupportedOperation {
+        msg: "Currently only linux is supported".to_string(),
+    });
+
+    res
+}
+
+/// Create a non-blocking pipe and return its fds packed as (read_fd << 32 | write_fd)
+#[no_mangle]
+pub extern "system" fn Java_com_mayreh_jktls_KTlsSocketChannel_pipe(
+    env: JNIEnv,
+    _class: JClass,
+) -> jlong {
+    let res = pipe();
+    maybe_throw(env, &res);
+    res.unwrap_or(-1)
+}
+
+fn pipe() -> Result<jlong, KTlsError> {
+    #[cfg(target_os = "linux")]
+    let res = {
+        use nix::fcntl::OFlag;
+        nix::unistd::pipe2(OFlag::O_CLOEXEC | OFlag::O_NONBLOCK)
+            .map(|(r, w)| ((r as jlong) << 32) | (w as jlong & 0xffff_ffff))
+            .map_err(|e| KTlsError::Socket {
+                msg: format!("Failed to create pipe: {}", e),
+            })
+    };
+    #[cfg(not(target_os = "linux"))]
+    let res = Err(KTlsError::UnsupportedOperation {
+        msg: "Currently only linux is supported".to_string(),
+    });
+
+    res
+}
+
+#[no_mangle]
+pub extern "system" fn Java_com_mayreh_jktls_KTlsSocketChannel_closeFd(
+    env: JNIEnv,
+    _class: JClass,
+    fd: jint,
+) {
+    let res = nix::unistd::close(fd).map_err(|e| KTlsError::Socket {
+        msg: format!("Failed to close: {}", e),
+    });
+    maybe_throw(env, &res);
+}
+
+#[cfg(test)]
+mod tests {
+    use crate::{pack_record_result, set_crypto_info, CipherType};
+
     #[test]
-    fn new_crypt_info_invalid() {
-        assert!(TlsCryptoInfo::new("foo", "bar").is_err());
+    fn cipher_type_from_id() {
+        assert_eq!(CipherType::from_id(51), Ok(CipherType::AesGcm128));
+        assert_eq!(CipherType::from_id(52), Ok(CipherType::AesGcm256));
+        assert_eq!(CipherType::from_id(54), Ok(CipherType::Chacha20Poly1305));
+        assert!(CipherType::from_id(0).is_err());
+        assert_eq!(CipherType::AesGcm128.info_size(), 40);
+        assert_eq!(CipherType::AesGcm256.info_size(), 56);
+        assert_eq!(CipherType::Chacha20Poly1305.info_size(), 56);
     }
 
     #[test]
-    fn new_crypt_vectors_tls12_aes_gcm_128() {
-        let info = TlsCryptoInfo::new("TLSv1.2", "TLS_RSA_WITH_AES_128_GCM_SHA256").unwrap();
-        let iv = vec![0; 8];
-        let key = vec![0; 16];
-        let salt = vec![0; 4];
-        let rec_seq = vec![0; 8];
-        assert_eq!(
-            Tls12AesGcm128::new(info, iv, key, salt, rec_seq),
-            Ok(Tls12AesGcm128 {
-                info,
-                iv: [0; 8],
-                key: [0; 16],
-                salt: [0; 4],
-                rec_seq: [0; 8]
-            })
-        )
+    fn pack_record_result_with_type() {
+        // application data
+        assert_eq!(pack_record_result(23, 100), (23i64 << 32) | 100);
+        // alert
+        let packed = pack_record_result(21, 2);
+        assert_eq!(packed >> 32, 21);
+        assert_eq!(packed as i32, 2);
+        // EOF
+        assert_eq!(pack_record_result(23, 0) as i32, 0);
     }
 
     #[test]
-    fn new_crypt_vectors_tls12_aes_gcm_128_invalid() {
-        let info = TlsCryptoInfo::new("TLSv1.2", "TLS_RSA_WITH_AES_128_GCM_SHA256").unwrap();
-        assert!(Tls12AesGcm128::new(info, vec![], vec![], vec![], vec![]).is_err())
+    fn set_crypto_info_invalid() {
+        // Arguments are validated before touching the socket or the address
+        assert!(set_crypto_info(-1, 0, 0, 51).is_err());
+        assert!(set_crypto_info(-1, 1, 0, 0).is_err());
     }
 }
@@ -0,0 +1,303 @@
+package com.mayreh.jktls.testing;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.SSLEngine;
+
+import com.mayreh.jktls.FileTransfer;
+import com.mayreh.jktls.KTlsHandshaker;
+import com.mayreh.jktls.KTlsSocketChannel;
+import com.mayreh.jktls.TlsContentType;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Single-threaded event loop which serves connections assigned by {@link KTlsServer}.
+ * Everything on a connection, from TLS handshake to dispatching messages, happens on the loop's thread
+ * except delegated tasks of {@link SSLEngine}, which are run on the task executor by {@link KTlsHandshaker}.
+ */
+@Slf4j
+class EventLoop extends Thread implements AutoCloseable {
+    // Large enough to read a full TLS record's plaintext at once
+    private static final int READ_BUFFER_SIZE = 65536;
+
+    private final KTlsServer server;
+    private final Executor taskExecutor;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Since TLS_RX is enabled after the handshake, data read from the channel is already decrypted by the kernel
+    // and handlers must not retain it after dispatching, so the buffer can be shared among all connections.
+    // Direct buffer saves a copy from the JDK's temporary direct buffer on read
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    private volatile boolean running = true;
+
+    EventLoop(KTlsServer server, Executor taskExecutor, String name) {
+        super(name);
+        this.server = server;
+        this.taskExecutor = taskExecutor;
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Run the task on the loop's thread
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Start serving the accepted channel.
+     * Can be called from any thread.
+     */
+    void register(SocketChannel socketChannel, SSLEngine engine) {
+        execute(() -> {
+            Connection connection = new Connection(
+                    this, socketChannel, new KTlsHandshaker(socketChannel, engine, taskExecutor, server.bufferPool));
+            try {
+                connection.key = socketChannel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                log.warn("Failed to register the channel", e);
+                close(connection);
+                return;
+            }
+            handshakeOrClose(connection);
+        });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                log.error("Exception occurred", e);
+                continue;
+            }
+            runTasks();
+
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+
+                if (!key.isValid()) {
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (connection.isHandshaking()) {
+                        handshake(connection);
+                        continue;
+                    }
+                    if (key.isWritable()) {
+                        flushTransfers(connection);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(connection);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    log.error("Exception occurred. Closing the connection", e);
+                    close(connection);
+                }
+            }
+        }
+
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            close((Connection) key.attachment());
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.error("Failed to close the selector", e);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Drive the handshake as far as possible without blocking.
+     * Resumed by the next readiness event, or by the completion of delegated tasks.
+     */
+    private void handshake(Connection connection) throws IOException {
+        KTlsHandshaker handshaker = connection.handshaker;
+        KTlsHandshaker.Status status = handshaker.advance();
+        switch (status) {
+            case NEED_READ:
+                connection.key.interestOps(SelectionKey.OP_READ);
+                break;
+            case NEED_WRITE:
+                connection.key.interestOps(SelectionKey.OP_WRITE);
+                break;
+            case NEED_TASK:
+                // Stop watching the channel until the tasks complete
+                connection.key.interestOps(0);
+                handshaker.delegatedTasks().whenComplete(
+                        (unused, e) -> execute(() -> handshakeOrClose(connection)));
+                break;
+            case FINISHED:
+                established(connection);
+                break;
+            case CLOSED:
+                close(connection);
+                break;
+        }
+    }
+
+    private void handshakeOrClose(Connection connection) {
+        try {
+            handshake(connection);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Closing the channel due to handshake failure", e);
+            close(connection);
+        }
+    }
+
+    private void established(Connection connection) throws IOException {
+        connection.channel = connection.handshaker.complete();
+        // Release the handshaker as its buffers are no longer necessary,
+        // which matters when serving many connections
+        connection.handshaker = null;
+        connection.key.interestOps(SelectionKey.OP_READ);
+        server.connections.put(connection.channel, connection);
+        // Data sent right after the handshake was decrypted in user space, which never fires readiness
+        if (connection.channel.hasPendingPlaintext()) {
+            read(connection);
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+        readBuffer.clear();
+        TlsContentType contentType;
+        try {
+            contentType = connection.channel.readRecord(readBuffer);
+        } catch (EOFException e) {
+            close(connection);
+            return;
+        }
+        if (contentType == null) {
+            return;
+        }
+        readBuffer.flip();
+        switch (contentType) {
+            case APPLICATION_DATA:
+                dispatch(connection, readBuffer);
+                break;
+            case ALERT:
+                // Either close_notify or a fatal alert. Either way, no more data will come
+                connection.channel.sendCloseNotify();
+                close(connection);
+                break;
+            default:
+                log.debug("Ignoring a record of type {}", contentType);
+                break;
+        }
+    }
+
+    private void dispatch(Connection connection, ByteBuffer data) throws IOException {
+        KTlsServer.BufferHandler currentHandler = server.getHandler();
+        if (currentHandler != null) {
+            currentHandler.handleIncomingData(connection.channel, data);
+        }
+    }
+
+    FileTransfer transfer(Connection connection,
+                          FileChannel file,
+                          long position,
+                          long count) throws IOException {
+        FileTransfer transfer = connection.channel.newFileTransfer(file, position, count);
+        connection.pendingTransfers.add(transfer);
+        flushTransfers(connection);
+        return transfer;
+    }
+
+    private static void flushTransfers(Connection connection) throws IOException {
+        FileTransfer transfer;
+        while ((transfer = connection.pendingTransfers.peek()) != null) {
+            transfer.transfer();
+            if (!transfer.isDone()) {
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            connection.pendingTransfers.poll();
+        }
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    private void close(Connection connection) {
+        if (connection.handshaker != null) {
+            connection.handshaker.release();
+        }
+        if (connection.channel != null) {
+            server.connections.remove(connection.channel);
+        }
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+        try {
+            connection.socketChannel.close();
+        } catch (IOException e) {
+            log.warn("Failed to close the channel", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            join();
+            // In case the loop has never been started
+            selector.close();
+        } catch (InterruptedException e) {
+            interrupt();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static class Connection {
+        final EventLoop loop;
+        final SocketChannel socketChannel;
+        final Deque<FileTransfer> pendingTransfers = new ArrayDeque<>();
+        // Non-null until the handshake finishes
+        KTlsHandshaker handshaker;
+        // Non-null once the handshake finishes
+        KTlsSocketChannel channel;
+        SelectionKey key;
+
+        Connection(EventLoop loop, SocketChannel socketChannel, KTlsHandshaker handshaker) {
+            this.loop = loop;
+            this.socketChannel = socketChannel;
+            this.handshaker = handshaker;
+        }
+
+        boolean isHandshaking() {
+            return handshaker != null;
+        }
+    }
+}
@@ -1,47 +1,66 @@
 package com.mayreh.jktls.testing;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.net.ssl.KeyManager;
-import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
-import javax.net.ssl.SSLEngineResult;
-import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 
+import com.mayreh.jktls.BufferPool;
+import com.mayreh.jktls.FileTransfer;
 import com.mayreh.jktls.KTlsSocketChannel;
-import com.mayreh.jktls.KTlsSocketOptions;
-import com.mayreh.jktls.TlsCryptoInfo;
+import com.mayreh.jktls.testing.EventLoop.Connection;
 
-import lombok.AllArgsConstructor;
+import lombok.AccessLevel;
 import lombok.Getter;
-import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * Reference implementation of TCP server that uses kernel TLS for data encryption.
+ * This thread accepts connections and distributes them to worker {@link EventLoop}s in round-robin,
+ * which perform non-blocking TLS handshake, then switch the connections to kernel TLS.
  * The code is highly inspired by alkarn's <a href="https://github.com/alkarn/sslengine.example">sslengine.example</a>
  */
 @Slf4j
 public class KTlsServer extends Thread implements AutoCloseable {
+    /**
+     * Receives data without copying.
+     * Handlers are called on the event loop thread which the channel belongs to, so must not block.
+     */
     @FunctionalInterface
-    public interface Handler {
+    public interface BufferHandler {
+        /**
+         * @param data a view of the received data, which is valid only during the call
+         */
+        void handleIncomingData(KTlsSocketChannel channel, ByteBuffer data) throws IOException;
+    }
+
+    /**
+     * Receives data as a fresh byte array.
+     */
+    @FunctionalInterface
+    public interface Handler extends BufferHandler {
         void handleIncomingMessage(KTlsSocketChannel channel, byte[] message) throws IOException;
+
+        @Override
+        default void handleIncomingData(KTlsSocketChannel channel, ByteBuffer data) throws IOException {
+            byte[] message = new byte[data.remaining()];
+            data.get(message);
+            handleIncomingMessage(channel, message);
+        }
     }
 
     private final String[] enabledCipherSuites;
@@ -51,9 +70,15 @@ public class KTlsServer extends Thread implements AutoCloseable {
     private final SSLContext sslContext;
     private final Selector selector;
     private final ServerSocketChannel serverSocketChannel;
+    private final EventLoop[] eventLoops;
+    // Handshake buffers are borrowed from the pool and returned once kernel TLS is enabled
+    final BufferPool bufferPool = BufferPool.SHARED;
+    private int nextEventLoop;
+    // Established connections
+    final Map<KTlsSocketChannel, Connection> connections = new ConcurrentHashMap<>();
 
-    @Setter
-    private volatile Handler handler;
+    @Getter(AccessLevel.PACKAGE)
+    private volatile BufferHandler handler;
 
     private volatile boolean running;
 
@@ -62,17 +87,25 @@ public class KTlsServer extends Thread implements AutoCloseable {
     }
 
     public KTlsServer(int port, String[] enabledCipherSuites) {
+        this(port, enabledCipherSuites, Runtime.getRuntime().availableProcessors());
+    }
+
+    public KTlsServer(int port, String[] enabledCipherSuites, int numEventLoops) {
+        super("ktls-server-acceptor");
         this.enabledCipherSuites = enabledCipherSuites;
-        taskExecutor = Executors.newSingleThreadExecutor(r -> {
+        AtomicInteger taskThreadId = new AtomicInteger();
+        taskExecutor = Executors.newFixedThreadPool(numEventLoops, r -> {
             Thread t = new Thread(r);
-            t.setName("ssl-task-executor");
+            t.setName("ssl-task-executor-" + taskThreadId.getAndIncrement());
             return t;
         });
+        eventLoops = new EventLoop[numEventLoops];
+        for (int i = 0; i < numEventLoops; i++) {
+            eventLoops[i] = new EventLoop(this, taskExecutor, "ktls-event-loop-" + i);
+        }
 
+        sslContext = SslContexts.server();
         try {
-            sslContext = SSLContext.getInstance("TLSv1.2");
-            sslContext.init(createKeyManagers(), null, new SecureRandom());
-
             selector = Selector.open();
             serverSocketChannel = ServerSocketChannel.open();
             serverSocketChannel.configureBlocking(false);
@@ -81,14 +114,15 @@ public class KTlsServer extends Thread implements AutoCloseable {
             serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
-        } catch (NoSuchAlgorithmException | KeyManagementException e) {
-            throw new RuntimeException(e);
         }
     }
 
     @Override
     public void run() {
         running = true;
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
 
         while (running) {
             try {
@@ -98,13 +132,8 @@ public class KTlsServer extends Thread implements AutoCloseable {
                     SelectionKey key = iterator.next();
                     iterator.remove();
 
-                    if (!key.isValid()) {
-                        continue;
-                    }
-                    if (key.isAcceptable()) {
+                    if (key.isValid() && key.isAcceptable()) {
                         accept();
-                    } else if (key.isReadable()) {
-                        read(key);
                     }
                 }
             } catch (IOException e) {
@@ -113,162 +142,45 @@ public class KTlsServer extends Thread implements AutoCloseable {
         }
     }
 
-    private void accept() throws IOException {
-        SocketChannel socketChannel = serverSocketChannel.accept();
-        socketChannel.configureBlocking(false);
-        SSLEngine engine = sslContext.createSSLEngine();
-        if (enabledCipherSuites != null) {
-            engine.setEnabledCipherSuites(enabledCipherSuites);
-        }
-
-        Connection connection = doHandshake(socketChannel, engine);
-        if (connection != null) {
-            connection.channel.setOption(KTlsSocketOptions.TCP_ULP, "tls");
-            connection.channel.setOption(KTlsSocketOptions.TLS_TX, TlsCryptoInfo.from(engine));
-            socketChannel.register(selector, SelectionKey.OP_READ, connection);
-        } else {
-            log.warn("Closing the channel due to handshake failure");
-            socketChannel.close();
-        }
+    public void setHandler(Handler handler) {
+        this.handler = handler;
     }
 
-    private void read(SelectionKey key) throws IOException {
-        Connection connection = (Connection) key.attachment();
-
-        connection.peerNetData.clear();
-        int read = connection.channel.read(connection.peerNetData);
-        if (read > 0) {
-            connection.peerNetData.flip();
-            while (connection.peerNetData.hasRemaining()) {
-                connection.peerAppData.clear();
-                SSLEngineResult engineResult = connection.engine.unwrap(
-                        connection.peerNetData,
-                        connection.peerAppData);
-                switch (engineResult.getStatus()) {
-                    case BUFFER_OVERFLOW:
-                        connection.peerAppData = grow(
-                                connection.peerAppData,
-                                connection.engine.getSession().getApplicationBufferSize());
-                        break;
-                    case BUFFER_UNDERFLOW:
-                        connection.peerNetData = handlePacketBufferUnderflow(
-                                connection.peerNetData,
-                                connection.engine.getSession().getPacketBufferSize());
-                        break;
-                    case CLOSED:
-                        log.warn("Closed");
-                        break;
-                    case OK:
-                        connection.peerAppData.flip();
-                        break;
-                }
-            }
-
-            byte[] message = new byte[connection.peerAppData.remaining()];
-            connection.peerAppData.get(message);
+    public void setBufferHandler(BufferHandler handler) {
+        this.handler = handler;
+    }
 
-            Handler currentHandler = handler;
-            if (currentHandler != null) {
-                currentHandler.handleIncomingMessage(connection.channel, message);
+    private void accept() throws IOException {
+        SocketChannel socketChannel;
+        while ((socketChannel = serverSocketChannel.accept()) != null) {
+            socketChannel.configureBlocking(false);
+            SSLEngine engine = sslContext.createSSLEngine();
+            engine.setUseClientMode(false);
+            if (enabledCipherSuites != null) {
+                engine.setEnabledCipherSuites(enabledCipherSuites);
             }
+            eventLoops[nextEventLoop].register(socketChannel, engine);
+            nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
         }
     }
 
-    private Connection doHandshake(SocketChannel socketChannel, SSLEngine engine) throws IOException {
-        int appBufferSize = engine.getSession().getApplicationBufferSize();
-        int packetBufferSize = engine.getSession().getPacketBufferSize();
-
-        ByteBuffer appData = ByteBuffer.allocate(appBufferSize);
-        ByteBuffer netData = ByteBuffer.allocate(packetBufferSize);
-        ByteBuffer peerAppData = ByteBuffer.allocate(appBufferSize);
-        ByteBuffer peerNetData = ByteBuffer.allocate(packetBufferSize);
-
-        engine.setUseClientMode(false);
-        engine.beginHandshake();
-
-        SSLEngineResult engineResult;
-        HandshakeStatus handshakeStatus = engine.getHandshakeStatus();
-        while (handshakeStatus != HandshakeStatus.FINISHED &&
-               handshakeStatus != HandshakeStatus.NOT_HANDSHAKING) {
-            switch (handshakeStatus) {
-                case NEED_UNWRAP:
-                    if (socketChannel.read(peerNetData) < 0) {
-                        if (engine.isInboundDone() && engine.isOutboundDone()) {
-                            return null;
-                        }
-                        engine.closeInbound();
-                        engine.closeOutbound();
-                        handshakeStatus = engine.getHandshakeStatus();
-                        break;
-                    }
-                    peerNetData.flip();
-                    engineResult = engine.unwrap(peerNetData, peerAppData);
-                    peerNetData.compact();
-                    handshakeStatus = engine.getHandshakeStatus();
-                    switch (engineResult.getStatus()) {
-                        case BUFFER_OVERFLOW:
-                            peerAppData = grow(peerAppData, engine.getSession().getApplicationBufferSize());
-                            break;
-                        case BUFFER_UNDERFLOW:
-                            peerNetData = handlePacketBufferUnderflow(
-                                    peerNetData,
-                                    engine.getSession().getApplicationBufferSize());
-                            break;
-                        case CLOSED:
-                            if (engine.isOutboundDone()) {
-                                return null;
-                            }
-                            engine.closeOutbound();
-                            handshakeStatus = engine.getHandshakeStatus();
-                            break;
-                        case OK:
-                            break;
-                    }
-                    break;
-                case NEED_WRAP:
-                    netData.clear();
-                    engineResult = engine.wrap(appData, netData);
-                    handshakeStatus = engineResult.getHandshakeStatus();
-                    switch (engineResult.getStatus()) {
-                        case BUFFER_OVERFLOW:
-                            netData = grow(netData, engine.getSession().getPacketBufferSize());
-                            break;
-                        case BUFFER_UNDERFLOW:
-                            throw new IllegalStateException("Should not happen");
-                        case CLOSED:
-                            netData.flip();
-                            while (netData.hasRemaining()) {
-                                socketChannel.write(netData);
-                            }
-                            peerNetData.clear();
-                            break;
-                        case OK:
-                            netData.flip();
-                            while (netData.hasRemaining()) {
-                                socketChannel.write(netData);
-                            }
-                            break;
-                    }
-                    break;
-                case NEED_TASK:
-                    Runnable task;
-                    while ((task = engine.getDelegatedTask()) != null) {
-                        taskExecutor.execute(task);
-                    }
-                    handshakeStatus = engine.getHandshakeStatus();
-                    break;
-                default:
-                    throw new IllegalStateException("Bug. Got status: " + handshakeStatus);
-            }
+    /**
+     * Start sending the file to the channel.
+     * If the file can't be sent at once, the transfer is resumed when the channel becomes writable,
+     * so that sending a large file doesn't block the event loop.
+     * Transfers on the same channel are processed in order.
+     * <p>
+     * This method must be called from the {@link Handler}.
+     */
+    public FileTransfer transfer(KTlsSocketChannel channel,
+                                 FileChannel file,
+                                 long position,
+                                 long count) throws IOException {
+        Connection connection = connections.get(channel);
+        if (connection == null) {
+            throw new IllegalStateException("Unknown channel");
         }
-
-        return new Connection(
-                KTlsSocketChannel.wrap(socketChannel),
-                engine,
-                appData,
-                netData,
-                peerAppData,
-                peerNetData);
+        return connection.loop.transfer(connection, file, position, count);
     }
 
     @Override
@@ -276,6 +188,10 @@ public class KTlsServer extends Thread implements AutoCloseable {
         running = false;
         try {
             join();
+            for (EventLoop eventLoop : eventLoops) {
+                eventLoop.close();
+            }
+            taskExecutor.shutdown();
             serverSocketChannel.close();
             selector.close();
         } catch (InterruptedException e) {
@@ -284,46 +200,4 @@ public class KTlsServer extends Thread implements AutoCloseable {
             throw new UncheckedIOException(e);
         }
     }
-
-    private static KeyManager[] createKeyManagers() {
-        char[] pass = "password".toCharArray();
-        try(InputStream keyStream = KTlsServer.class.getClassLoader().getResourceAsStream("server.keystore.p12")) {
-            KeyStore keyStore = KeyStore.getInstance("PKCS12");
-            keyStore.load(keyStream, pass);
-            KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-            factory.init(keyStore, pass);
-
-            return factory.getKeyManagers();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private static ByteBuffer grow(ByteBuffer buffer, int proposedCapacity) {
-        if (proposedCapacity > buffer.capacity()) {
-            return ByteBuffer.allocate(proposedCapacity);
-        }
-        return ByteBuffer.allocate(buffer.capacity() * 2);
-    }
-
-    private static ByteBuffer handlePacketBufferUnderflow(
-            ByteBuffer packetBuffer, int proposedCapacity) {
-        if (proposedCapacity < packetBuffer.limit()) {
-            return packetBuffer;
-        }
-        ByteBuffer newBuffer = grow(packetBuffer, proposedCapacity);
-        packetBuffer.flip();
-        newBuffer.put(packetBuffer);
-        return newBuffer;
-    }
-
-    @AllArgsConstructor
-    static class Connection {
-        final KTlsSocketChannel channel;
-        final SSLEngine engine;
-        ByteBuffer appData;
-        ByteBuffer netData;
-        ByteBuffer peerAppData;
-        ByteBuffer peerNetData;
-    }
 }
@@ -9,13 +9,19 @@ import lombok.RequiredArgsConstructor;
 
 @RequiredArgsConstructor
 public class KTlsServerClientRule extends ExternalResource {
+    @Getter
     private KTlsServer server;
     @Getter
     private TlsClient client;
+    private final String protocol;
     private final String[] enabledCipherSuites;
 
     public KTlsServerClientRule() {
-        this(null);
+        this((String[]) null);
+    }
+
+    public KTlsServerClientRule(String[] enabledCipherSuites) {
+        this("TLSv1.2", enabledCipherSuites);
     }
 
     public int port() {
@@ -31,7 +37,7 @@ public class KTlsServerClientRule extends ExternalResource {
         super.before();
         server = new KTlsServer(0, enabledCipherSuites);
         server.start();
-        client = new TlsClient("localhost", server.getPort());
+        client = new TlsClient("localhost", server.getPort(), protocol);
     }
 
     @Override
@@ -0,0 +1,88 @@
+package com.mayreh.jktls.testing;
+
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * {@link SSLContext}s for testing purpose which use the self-signed certificate bundled in this module.
+ */
+public final class SslContexts {
+    // Large enough to keep the sessions of all clients reconnecting after a failover
+    private static final int SESSION_CACHE_SIZE = 100_000;
+    private static final int SESSION_TIMEOUT_SECONDS = 3600;
+
+    private SslContexts() {}
+
+    /**
+     * Create an {@link SSLContext} for servers.
+     * Sessions are cached so that reconnecting clients can resume them by session ID or PSK
+     * without full handshakes. Stateless tickets are issued as well on JDK 13+
+     * (see {@code jdk.tls.server.enableSessionTicketExtension}).
+     */
+    public static SSLContext server() {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(createKeyManagers(), null, new SecureRandom());
+            context.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            context.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            return context;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Create an {@link SSLContext} for clients which trusts any certificate
+     */
+    public static SSLContext client(String protocol) {
+        try {
+            SSLContext context = SSLContext.getInstance(protocol);
+            context.init(null, createTrustManagers(), null);
+            return context;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static KeyManager[] createKeyManagers() throws Exception {
+        char[] pass = "password".toCharArray();
+        try (InputStream keyStream = SslContexts.class.getClassLoader().getResourceAsStream("server.keystore.p12")) {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(keyStream, pass);
+            KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            factory.init(keyStore, pass);
+
+            return factory.getKeyManagers();
+        }
+    }
+
+    private static TrustManager[] createTrustManagers() {
+        return new TrustManager[] {
+                new X509TrustManager() {
+                    @Override
+                    public void checkClientTrusted(X509Certificate[] chain, String authType)
+                            throws CertificateException {
+                    }
+
+                    @Override
+                    public void checkServerTrusted(X509Certificate[] chain, String authType)
+                            throws CertificateException {
+                    }
+
+                    @Override
+                    public X509Certificate[] getAcceptedIssuers() {
+                        return new X509Certificate[0];
+                    }
+                }
+        };
+    }
+}
@@ -5,15 +5,8 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.UncheckedIOException;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
 
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
 
 public class TlsClient implements AutoCloseable {
     private final SSLSocket socket;
@@ -21,10 +14,12 @@ public class TlsClient implements AutoCloseable {
     private final PrintWriter writer;
 
     public TlsClient(String host, int port) {
+        this(host, port, "TLSv1.2");
+    }
+
+    public TlsClient(String host, int port, String protocol) {
         try {
-            SSLContext context = SSLContext.getInstance("TLSv1.2");
-            context.init(null, createTrustManagers(), null);
-            socket = (SSLSocket) context
+            socket = (SSLSocket) SslContexts.client(protocol)
                     .getSocketFactory()
                     .createSocket(host, port);
 
@@ -32,8 +27,6 @@ public class TlsClient implements AutoCloseable {
             writer = new PrintWriter(socket.getOutputStream());
         } catch (IOException e) {
             throw new UncheckedIOException(e);
-        } catch (NoSuchAlgorithmException | KeyManagementException e) {
-            throw new RuntimeException(e);
         }
     }
 
@@ -48,27 +41,6 @@ public class TlsClient implements AutoCloseable {
         }
     }
 
-    private static TrustManager[] createTrustManagers() {
-        return new TrustManager[] {
-                new X509TrustManager() {
-                    @Override
-                    public void checkClientTrusted(X509Certificate[] chain, String authType)
-                            throws CertificateException {
-                    }
-
-                    @Override
-                    public void checkServerTrusted(X509Certificate[] chain, String authType)
-                            throws CertificateException {
-                    }
-
-                    @Override
-                    public X509Certificate[] getAcceptedIssuers() {
-                        return new X509Certificate[0];
-                    }
-                }
-        };
-    }
-
     @Override
     public void close() {
         try {
@@ -0,0 +1,170 @@
+package com.mayreh.jktls.testing;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import com.mayreh.jktls.BufferPool;
+import com.mayreh.jktls.KTlsHandshaker;
+import com.mayreh.jktls.KTlsSocketChannel;
+import com.mayreh.jktls.TlsContentType;
+import com.mayreh.jktls.VirtualThreads;
+import com.mayreh.jktls.testing.KTlsServer.BufferHandler;
+import com.mayreh.jktls.testing.KTlsServer.Handler;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Thread-per-connection variant of {@link KTlsServer} with blocking IO.
+ * Each connection is served by a virtual thread (or a platform thread on JDKs without virtual threads)
+ * which performs TLS handshake, switches to kernel TLS, then reads messages and calls the {@link Handler}.
+ * Unlike {@link KTlsServer}, the handler may block.
+ */
+@Slf4j
+public class VirtualThreadKTlsServer extends Thread implements AutoCloseable {
+    // Large enough to read a full TLS record's plaintext at once
+    private static final int READ_BUFFER_SIZE = 65536;
+
+    private final String[] enabledCipherSuites;
+    @Getter
+    private final int port;
+    private final SSLContext sslContext;
+    private final ServerSocketChannel serverSocketChannel;
+    private final ThreadFactory threadFactory;
+    private final Set<SocketChannel> channels = ConcurrentHashMap.newKeySet();
+
+    private volatile BufferHandler handler;
+
+    public VirtualThreadKTlsServer(int port) {
+        this(port, null);
+    }
+
+    public VirtualThreadKTlsServer(int port, String[] enabledCipherSuites) {
+        super("ktls-server-acceptor");
+        this.enabledCipherSuites = enabledCipherSuites;
+        if (VirtualThreads.isSupported()) {
+            threadFactory = VirtualThreads.factory("ktls-connection-");
+        } else {
+            log.warn("Virtual threads are not supported. Falling back to platform threads");
+            AtomicInteger threadId = new AtomicInteger();
+            threadFactory = r -> new Thread(r, "ktls-connection-" + threadId.getAndIncrement());
+        }
+
+        sslContext = SslContexts.server();
+        try {
+            serverSocketChannel = ServerSocketChannel.open();
+            serverSocketChannel.socket().bind(new InetSocketAddress("0.0.0.0", port));
+            this.port = serverSocketChannel.socket().getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void setHandler(Handler handler) {
+        this.handler = handler;
+    }
+
+    public void setBufferHandler(BufferHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void run() {
+        while (serverSocketChannel.isOpen()) {
+            try {
+                SocketChannel socketChannel = serverSocketChannel.accept();
+                channels.add(socketChannel);
+                threadFactory.newThread(() -> serve(socketChannel)).start();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                log.error("Exception occurred", e);
+            }
+        }
+    }
+
+    private void serve(SocketChannel socketChannel) {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        if (enabledCipherSuites != null) {
+            engine.setEnabledCipherSuites(enabledCipherSuites);
+        }
+        KTlsHandshaker handshaker = new KTlsHandshaker(socketChannel, engine, Runnable::run, BufferPool.SHARED);
+        ByteBuffer buffer = null;
+        try {
+            if (handshaker.advance() != KTlsHandshaker.Status.FINISHED) {
+                log.warn("Closing the channel due to handshake failure");
+                return;
+            }
+            KTlsSocketChannel channel = handshaker.complete();
+
+            // Since TLS_RX is enabled, data read from the channel is already decrypted by the kernel,
+            // except the data sent right after the handshake, which the channel serves first
+            buffer = BufferPool.SHARED.acquire(READ_BUFFER_SIZE);
+            while (true) {
+                TlsContentType contentType = channel.readRecord(buffer);
+                buffer.flip();
+                if (contentType == TlsContentType.APPLICATION_DATA) {
+                    dispatch(channel, buffer);
+                } else if (contentType == TlsContentType.ALERT) {
+                    // Either close_notify or a fatal alert. Either way, no more data will come
+                    channel.sendCloseNotify();
+                    return;
+                }
+                buffer.clear();
+            }
+        } catch (EOFException e) {
+            log.debug("Connection closed by peer");
+        } catch (IOException e) {
+            if (socketChannel.isOpen()) {
+                log.warn("Closing the channel due to exception", e);
+            }
+        } finally {
+            handshaker.release();
+            if (buffer != null) {
+                BufferPool.SHARED.release(buffer);
+            }
+            channels.remove(socketChannel);
+            try {
+                socketChannel.close();
+            } catch (IOException e) {
+                log.warn("Failed to close the channel", e);
+            }
+        }
+    }
+
+    private void dispatch(KTlsSocketChannel channel, ByteBuffer data) throws IOException {
+        BufferHandler currentHandler = handler;
+        if (currentHandler != null) {
+            currentHandler.handleIncomingData(channel, data);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            serverSocketChannel.close();
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+            join();
+        } catch (InterruptedException e) {
+            interrupt();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}